@@ -0,0 +1,301 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.jbehave.core.annotations.ScenarioType;
+import org.jbehave.core.configuration.Configuration;
+import org.jbehave.core.model.Scenario;
+import org.jbehave.core.model.Story;
+import org.jbehave.core.steps.BeforeOrAfterStep;
+import org.jbehave.core.steps.CandidateSteps;
+
+import de.codecentric.jbehave.junit.monitoring.JUnitScenarioReporter.StoryOutcome;
+
+/**
+ * Opt-in record of the inputs of each story as of the last run it passed in,
+ * so that stories whose inputs did not change since are not run again. Their
+ * tests are still reported, as ignored or, with the system property
+ * {@value #PROP_JJM_AFFECTED_REPORT} set to <code>passed</code>, as passed.
+ * <p>
+ * The inputs of a story are its text, the texts of the given stories it uses,
+ * the bytecode of the steps classes its steps matched when its description
+ * was generated, together with that of the steps classes with before or after
+ * story or scenario methods, and the fingerprint of all step candidates. If
+ * not all steps of a story were matched, e.g. as descriptions end at the
+ * scenarios or the story uses given stories, the bytecode of all steps
+ * classes is taken instead.
+ * <p>
+ * Enabled with the system property {@value #PROP_JJM_AFFECTED_ONLY}, set
+ * either to <code>true</code> (to use {@value #DEFAULT_DIRECTORY}) or to the
+ * directory to use. There is one file per test class, listing the hash of the
+ * inputs by story path.
+ */
+public class AffectedStories {
+	public static final String PROP_JJM_AFFECTED_ONLY = "jjm.affected.only";
+	public static final String PROP_JJM_AFFECTED_REPORT = "jjm.affected.report";
+	public static final String DEFAULT_DIRECTORY = "target/jjm-affected-stories";
+
+	Logger logger = new Logger();
+
+	private final StateFile stateFile;
+	private final Configuration configuration;
+	private final String fingerprint;
+	private final Set<Class<?>> stepsClasses;
+	private final Set<Class<?>> lifecycleStepsClasses;
+	private final boolean reportedAsPassed;
+	private final Map<String, String> greenInputs;
+	private final Map<String, String> currentInputs = new HashMap<String, String>();
+	private final Map<Class<?>, String> bytecodeHashes = new HashMap<Class<?>, String>();
+
+	AffectedStories(File file, Configuration configuration,
+			String fingerprint, Set<Class<?>> stepsClasses,
+			Set<Class<?>> lifecycleStepsClasses, boolean reportedAsPassed) {
+		stateFile = file == null ? null : new StateFile(file,
+				"affected stories");
+		// loaded right away, as stories on several threads look it up
+		greenInputs = stateFile == null ? null : load();
+		this.configuration = configuration;
+		this.fingerprint = fingerprint;
+		this.stepsClasses = stepsClasses;
+		this.lifecycleStepsClasses = lifecycleStepsClasses;
+		this.reportedAsPassed = reportedAsPassed;
+	}
+
+	public static AffectedStories forTestClass(Class<?> testClass,
+			Configuration configuration, JUnitDescriptionGenerator generator,
+			List<CandidateSteps> candidateSteps) {
+		File file = StateFile.forTestClass(testClass, PROP_JJM_AFFECTED_ONLY,
+				DEFAULT_DIRECTORY, ".inputs");
+		if (file == null) {
+			return new AffectedStories(null, null, null, null, null, false);
+		}
+		return new AffectedStories(file, configuration, generator.fingerprint(),
+				generator.getStepsClasses(),
+				lifecycleStepsClassesOf(candidateSteps), "passed"
+						.equalsIgnoreCase(SystemProperties.stringProperty(
+								PROP_JJM_AFFECTED_REPORT, "ignored")));
+	}
+
+	public boolean isEnabled() {
+		return stateFile != null;
+	}
+
+	/**
+	 * @return whether the tests of unchanged stories are reported as passed
+	 *         rather than ignored
+	 */
+	public boolean isReportedAsPassed() {
+		return reportedAsPassed;
+	}
+
+	/**
+	 * Takes the inputs of a story, right after its description was generated.
+	 *
+	 * @param storyAsText
+	 *            the text of the story, or <code>null</code> to load it
+	 * @param story
+	 *            the parsed story, or <code>null</code> to parse it
+	 * @param matchedStepsClasses
+	 *            the classes of the steps matched by the story, or
+	 *            <code>null</code> if not known
+	 */
+	public void describe(String storyPath, String storyAsText, Story story,
+			Set<Class<?>> matchedStepsClasses) {
+		if (!isEnabled()) {
+			return;
+		}
+		try {
+			if (storyAsText == null) {
+				storyAsText = configuration.storyLoader().loadStoryAsText(
+						storyPath);
+			}
+			if (story == null) {
+				story = configuration.storyParser().parseStory(storyAsText,
+						storyPath);
+			}
+			currentInputs.put(storyPath,
+					inputsHash(storyAsText, story, matchedStepsClasses));
+		} catch (RuntimeException e) {
+			logger.info("Cannot take inputs of {}: {}", storyPath, e);
+		}
+	}
+
+	/**
+	 * @return whether the story passed before and none of its inputs changed
+	 *         since
+	 */
+	public boolean isUnchanged(String storyPath) {
+		if (!isEnabled() || storyPath == null) {
+			return false;
+		}
+		String inputs = currentInputs.get(storyPath);
+		return inputs != null && inputs.equals(greenInputs.get(storyPath));
+	}
+
+	/**
+	 * Keeps the inputs of the stories of the run that ran completely and had
+	 * passed tests and no failed ones, and drops those of the stories that
+	 * failed.
+	 */
+	public void update(List<String> storyPaths, List<StoryOutcome> outcomes) {
+		if (!isEnabled()) {
+			return;
+		}
+		Set<String> runStoryPaths = new HashSet<String>(storyPaths);
+		for (StoryOutcome outcome : outcomes) {
+			String storyPath = outcome.getPath();
+			if (!runStoryPaths.contains(storyPath)) {
+				continue;
+			}
+			if (outcome.getFailed() > 0) {
+				greenInputs.remove(storyPath);
+			} else if (outcome.isComplete() && outcome.getPassed() > 0
+					&& currentInputs.containsKey(storyPath)) {
+				greenInputs.put(storyPath, currentInputs.get(storyPath));
+			}
+		}
+	}
+
+	public void save() {
+		if (!isEnabled()) {
+			return;
+		}
+		Properties properties = new Properties();
+		properties.putAll(greenInputs);
+		stateFile.writeProperties(properties, "inputs of passed stories");
+	}
+
+	private String inputsHash(String storyAsText, Story story,
+			Set<Class<?>> matchedStepsClasses) {
+		StringBuilder inputs = new StringBuilder();
+		inputs.append(fingerprint).append('\n');
+		inputs.append(StoryDescriptionCache.hash(storyAsText)).append('\n');
+		Set<String> givenStoryPaths = new LinkedHashSet<String>();
+		addGivenStoryPaths(story, givenStoryPaths);
+		for (String givenStoryPath : givenStoryPaths) {
+			inputs.append(givenStoryPath).append(' ')
+					.append(givenStoryHash(givenStoryPath)).append('\n');
+		}
+		Set<Class<?>> classes = new HashSet<Class<?>>(lifecycleStepsClasses);
+		classes.addAll(matchedStepsClasses == null
+				|| !givenStoryPaths.isEmpty() ? stepsClasses
+				: matchedStepsClasses);
+		Map<String, String> sortedHashes = new TreeMap<String, String>();
+		for (Class<?> stepsClass : classes) {
+			for (Class<?> type = stepsClass; type != null
+					&& type.getClassLoader() != null; type = type
+					.getSuperclass()) {
+				sortedHashes.put(type.getName(), bytecodeHash(type));
+			}
+		}
+		for (Map.Entry<String, String> entry : sortedHashes.entrySet()) {
+			inputs.append(entry.getKey()).append(' ').append(entry.getValue())
+					.append('\n');
+		}
+		return StoryDescriptionCache.hash(inputs.toString());
+	}
+
+	/**
+	 * Adds the paths of the given stories used by the story and, in turn, by
+	 * those given stories.
+	 */
+	private void addGivenStoryPaths(Story story, Set<String> givenStoryPaths) {
+		List<String> paths = new ArrayList<String>(story.getGivenStories()
+				.getPaths());
+		for (Scenario scenario : story.getScenarios()) {
+			paths.addAll(scenario.getGivenStories().getPaths());
+		}
+		for (String path : paths) {
+			if (givenStoryPaths.add(path)) {
+				try {
+					addGivenStoryPaths(configuration.storyParser().parseStory(
+							configuration.storyLoader().loadStoryAsText(path),
+							path), givenStoryPaths);
+				} catch (RuntimeException e) {
+					// taken as changed by its hash
+				}
+			}
+		}
+	}
+
+	private String givenStoryHash(String givenStoryPath) {
+		try {
+			return StoryDescriptionCache.hash(configuration.storyLoader()
+					.loadStoryAsText(givenStoryPath));
+		} catch (RuntimeException e) {
+			return "unavailable " + System.nanoTime();
+		}
+	}
+
+	private String bytecodeHash(Class<?> type) {
+		String hash = bytecodeHashes.get(type);
+		if (hash != null) {
+			return hash;
+		}
+		InputStream in = type.getClassLoader().getResourceAsStream(
+				type.getName().replace('.', '/') + ".class");
+		if (in == null) {
+			hash = "unavailable " + System.nanoTime();
+		} else {
+			try {
+				try {
+					ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+					byte[] buffer = new byte[8192];
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						bytecode.write(buffer, 0, read);
+					}
+					hash = StoryDescriptionCache.hash(bytecode.toByteArray());
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				hash = "unavailable " + System.nanoTime();
+			}
+		}
+		bytecodeHashes.put(type, hash);
+		return hash;
+	}
+
+	private static Set<Class<?>> lifecycleStepsClassesOf(
+			List<CandidateSteps> candidateSteps) {
+		Set<Class<?>> classes = new HashSet<Class<?>>();
+		if (candidateSteps == null) {
+			return classes;
+		}
+		for (CandidateSteps steps : candidateSteps) {
+			List<BeforeOrAfterStep> lifecycleSteps = new ArrayList<BeforeOrAfterStep>();
+			lifecycleSteps.addAll(steps.listBeforeOrAfterStory(false));
+			lifecycleSteps.addAll(steps.listBeforeOrAfterStory(true));
+			for (ScenarioType type : ScenarioType.values()) {
+				lifecycleSteps.addAll(steps.listBeforeOrAfterScenario(type));
+			}
+			for (BeforeOrAfterStep step : lifecycleSteps) {
+				classes.add(step.getMethod().getDeclaringClass());
+			}
+		}
+		return classes;
+	}
+
+	private Map<String, String> load() {
+		Map<String, String> inputs = new HashMap<String, String>();
+		Properties properties = stateFile.readProperties();
+		for (String storyPath : properties.stringPropertyNames()) {
+			inputs.put(storyPath, properties.getProperty(storyPath));
+		}
+		return inputs;
+	}
+
+}
@@ -0,0 +1,291 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
+
+/**
+ * Passes notifications on to another {@link RunNotifier} on a single
+ * dispatcher thread, so that slow run listeners do not hold up the steps.
+ * Notifications are put on a bounded queue and passed on in the order they
+ * were put. If the queue is full, the reporting thread waits; how often and how
+ * long is kept as back-pressure metrics. A run listener failing is logged as
+ * a warning, as the reporting thread cannot see it.
+ * <p>
+ * Used if the system property {@value #PROP_JJM_NOTIFIER_QUEUE} is set to the
+ * capacity of the queue. {@link #fireTestRunFinished(Result)} returns after
+ * all notifications, including itself, were passed on.
+ */
+public class AsyncRunNotifier extends RunNotifier {
+	public static final String PROP_JJM_NOTIFIER_QUEUE = "jjm.notifier.queue";
+
+	Logger logger = new Logger();
+
+	private final RunNotifier delegate;
+	private final BlockingQueue<Notification> queue;
+	private final Thread dispatcher;
+	private volatile boolean closed;
+	private volatile boolean stopped;
+
+	private final AtomicLong notifications = new AtomicLong();
+	private final AtomicInteger maxQueueSize = new AtomicInteger();
+	private final AtomicLong blockedPuts = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+
+	public AsyncRunNotifier(RunNotifier delegate, int capacity) {
+		this.delegate = delegate;
+		this.queue = new ArrayBlockingQueue<Notification>(capacity);
+		this.dispatcher = new Thread(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		}, "jjm-notifier");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * @return the capacity configured by {@value #PROP_JJM_NOTIFIER_QUEUE}, or
+	 *         0 if notifications are to be passed on synchronously
+	 */
+	public static int configuredCapacity() {
+		return Math.max(0,
+				SystemProperties.intProperty(PROP_JJM_NOTIFIER_QUEUE, 0));
+	}
+
+	private void dispatch() {
+		while (true) {
+			Notification notification;
+			try {
+				notification = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (notification == Notification.CLOSE) {
+				// pass on what was put while closing
+				while ((notification = queue.poll()) != null) {
+					passOn(notification);
+				}
+				return;
+			}
+			passOn(notification);
+		}
+	}
+
+	private void passOn(Notification notification) {
+		try {
+			notification.passOn(delegate);
+		} catch (StoppedByUserException e) {
+			// refuse the next test started on the reporting thread
+			stopped = true;
+		} catch (RuntimeException e) {
+			logger.warn("Notification failed: {}", e);
+		}
+	}
+
+	private void put(Notification notification) {
+		if (closed) {
+			synchronized (this) {
+				notification.passOn(delegate);
+			}
+			return;
+		}
+		notifications.incrementAndGet();
+		enqueue(notification);
+	}
+
+	private void enqueue(Notification notification) {
+		if (!queue.offer(notification)) {
+			long start = System.nanoTime();
+			try {
+				queue.put(notification);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			blockedPuts.incrementAndGet();
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+		int size = queue.size();
+		int max = maxQueueSize.get();
+		while (size > max && !maxQueueSize.compareAndSet(max, size)) {
+			max = maxQueueSize.get();
+		}
+	}
+
+	/**
+	 * Waits until all notifications put so far were passed on.
+	 */
+	public void flush() {
+		if (closed) {
+			return;
+		}
+		final CountDownLatch flushed = new CountDownLatch(1);
+		enqueue(new Notification() {
+			void passOn(RunNotifier notifier) {
+				flushed.countDown();
+			}
+		});
+		try {
+			flushed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Flushes the queue, stops the dispatcher thread and prints the
+	 * back-pressure metrics whatever the log level. Notifications after
+	 * closing are passed on synchronously.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		flush();
+		closed = true;
+		queue.offer(Notification.CLOSE);
+		logger.report(
+				"Passed on {} notifications, queue size at most {}, waited {} times for {} ms",
+				notifications.get(), maxQueueSize.get(), blockedPuts.get(),
+				blockedNanos.get() / 1000000);
+	}
+
+	public long getNotifications() {
+		return notifications.get();
+	}
+
+	public int getMaxQueueSize() {
+		return maxQueueSize.get();
+	}
+
+	/**
+	 * @return how often a reporting thread had to wait for a full queue
+	 */
+	public long getBlockedPuts() {
+		return blockedPuts.get();
+	}
+
+	public long getBlockedNanos() {
+		return blockedNanos.get();
+	}
+
+	@Override
+	public void addListener(final RunListener listener) {
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.addListener(listener);
+			}
+		});
+	}
+
+	@Override
+	public void addFirstListener(final RunListener listener) {
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.addFirstListener(listener);
+			}
+		});
+	}
+
+	@Override
+	public void removeListener(final RunListener listener) {
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.removeListener(listener);
+			}
+		});
+	}
+
+	@Override
+	public void fireTestRunStarted(final Description description) {
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.fireTestRunStarted(description);
+			}
+		});
+	}
+
+	@Override
+	public void fireTestRunFinished(final Result result) {
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.fireTestRunFinished(result);
+			}
+		});
+		flush();
+	}
+
+	@Override
+	public void fireTestStarted(final Description description)
+			throws StoppedByUserException {
+		if (stopped) {
+			throw new StoppedByUserException();
+		}
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.fireTestStarted(description);
+			}
+		});
+	}
+
+	@Override
+	public void fireTestFailure(final Failure failure) {
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.fireTestFailure(failure);
+			}
+		});
+	}
+
+	@Override
+	public void fireTestAssumptionFailed(final Failure failure) {
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.fireTestAssumptionFailed(failure);
+			}
+		});
+	}
+
+	@Override
+	public void fireTestIgnored(final Description description) {
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.fireTestIgnored(description);
+			}
+		});
+	}
+
+	@Override
+	public void fireTestFinished(final Description description) {
+		put(new Notification() {
+			void passOn(RunNotifier notifier) {
+				notifier.fireTestFinished(description);
+			}
+		});
+	}
+
+	@Override
+	public void pleaseStop() {
+		stopped = true;
+		delegate.pleaseStop();
+	}
+
+	private abstract static class Notification {
+		static final Notification CLOSE = new Notification() {
+			void passOn(RunNotifier notifier) {
+			}
+		};
+
+		abstract void passOn(RunNotifier notifier);
+	}
+}
@@ -0,0 +1,150 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.runner.Description;
+
+import de.codecentric.jbehave.junit.monitoring.DescriptionKinds.Kind;
+
+/**
+ * The generated description of a single story, as stored in the
+ * {@link StoryDescriptionCache}. Besides the description subtree and the
+ * number of test cases it keeps the texts passed through the
+ * {@link DescriptionTextUniquefier} and their results, so that a restored
+ * description can be checked against the names of the current run.
+ * <p>
+ * {@link Description} is not serializable with all JUnit versions, so only the
+ * display names of the subtree are stored and the descriptions are recreated
+ * from them. Test descriptions keep the name of their class, so that they are
+ * restored as test descriptions of the same class. The
+ * {@link DescriptionKinds.Kind} of each description is kept along with it and
+ * registered again on restoring.
+ */
+public class CachedStoryDescription implements Serializable {
+	private static final long serialVersionUID = 3L;
+
+	private final String contentHash;
+	private final DescriptionNode description;
+	private transient Description restoredDescription;
+	private final int testCases;
+	private final int scenarios;
+	private final List<String> baseNames;
+	private final List<String> uniqueNames;
+
+	public CachedStoryDescription(String contentHash, Description description,
+			DescriptionKinds kinds, int testCases, int scenarios,
+			List<String> baseNames, List<String> uniqueNames) {
+		this.contentHash = contentHash;
+		this.description = description == null ? null : new DescriptionNode(
+				description, kinds);
+		this.restoredDescription = description;
+		this.testCases = testCases;
+		this.scenarios = scenarios;
+		this.baseNames = baseNames;
+		this.uniqueNames = uniqueNames;
+	}
+
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @return <code>false</code> if the story was not allowed by the meta
+	 *         filter
+	 */
+	public boolean hasDescription() {
+		return description != null;
+	}
+
+	/**
+	 * @return the description of the story, or <code>null</code> if the story
+	 *         was not allowed by the meta filter
+	 */
+	public Description getDescription() {
+		return getDescription(new DescriptionKinds());
+	}
+
+	/**
+	 * @param kinds
+	 *            where the kinds of restored descriptions are registered
+	 */
+	public Description getDescription(DescriptionKinds kinds) {
+		if (restoredDescription == null && description != null) {
+			restoredDescription = description.toDescription(kinds);
+		}
+		return restoredDescription;
+	}
+
+	public int getTestCases() {
+		return testCases;
+	}
+
+	public int getScenarios() {
+		return scenarios;
+	}
+
+	public List<String> getBaseNames() {
+		return baseNames;
+	}
+
+	public List<String> getUniqueNames() {
+		return uniqueNames;
+	}
+
+	private static class DescriptionNode implements Serializable {
+		private static final long serialVersionUID = 3L;
+
+		private final String displayName;
+		private final String className;
+		private final String methodName;
+		private final Kind kind;
+		private final List<DescriptionNode> children;
+
+		DescriptionNode(Description description, DescriptionKinds kinds) {
+			displayName = description.getDisplayName();
+			Class<?> testClass = description.isTest() ? description
+					.getTestClass() : null;
+			className = testClass == null ? null : testClass.getName();
+			methodName = testClass == null ? null : description
+					.getMethodName();
+			kind = kinds.kindOf(description);
+			children = new ArrayList<DescriptionNode>(description
+					.getChildren().size());
+			for (Description child : description.getChildren()) {
+				children.add(new DescriptionNode(child, kinds));
+			}
+		}
+
+		Description toDescription(DescriptionKinds kinds) {
+			Class<?> testClass = testClass();
+			Description description = testClass == null ? Description
+					.createSuiteDescription(displayName) : Description
+					.createTestDescription(testClass, methodName);
+			if (kind != null) {
+				kinds.register(description, kind);
+			}
+			for (DescriptionNode child : children) {
+				description.addChild(child.toDescription(kinds));
+			}
+			return description;
+		}
+
+		private Class<?> testClass() {
+			if (className == null) {
+				return null;
+			}
+			try {
+				ClassLoader classLoader = Thread.currentThread()
+						.getContextClassLoader();
+				return Class.forName(className, false,
+						classLoader != null ? classLoader
+								: CachedStoryDescription.class
+										.getClassLoader());
+			} catch (ClassNotFoundException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.runner.Description;
+
+/**
+ * Side table of the descriptions created by
+ * {@link JUnitDescriptionGenerator}. It tells what each of them describes and
+ * gives each an ordinal in the order of creation. Descriptions are looked up
+ * by identity, so the reporter does not need to look at display names. The
+ * table may be read by several story threads, and finished stories may be
+ * released from it while others run.
+ */
+public class DescriptionKinds {
+
+	public enum Kind {
+		STORY, SCENARIO, EXAMPLE, STEP, GIVEN_STORY, COMPOSITE
+	}
+
+	private final Map<Description, Node> nodes = new IdentityHashMap<Description, Node>();
+	private int nextOrdinal;
+
+	public synchronized void register(Description description, Kind kind) {
+		nodes.put(description, new Node(kind, nextOrdinal++));
+	}
+
+	/**
+	 * Forgets a description and all descriptions below it. Their ordinals are
+	 * not given to other descriptions.
+	 */
+	public synchronized void release(Description description) {
+		nodes.remove(description);
+		for (Description child : description.getChildren()) {
+			release(child);
+		}
+	}
+
+	/**
+	 * @return the kind of the description, or <code>null</code> if it was not
+	 *         registered, like the descriptions of the runner itself
+	 */
+	public synchronized Kind kindOf(Description description) {
+		Node node = nodes.get(description);
+		return node == null ? null : node.kind;
+	}
+
+	/**
+	 * @return the ordinal of the description, or -1 if it was not registered
+	 */
+	public synchronized int ordinalOf(Description description) {
+		Node node = nodes.get(description);
+		return node == null ? -1 : node.ordinal;
+	}
+
+	public synchronized boolean is(Description description, Kind kind) {
+		Node node = nodes.get(description);
+		return node != null && node.kind == kind;
+	}
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Derives the kinds of a description tree that was not created with a
+	 * side table from its structure, the way the tree is built by
+	 * {@link JUnitDescriptionGenerator}. Given stories cannot be told apart
+	 * from steps this way and are registered as steps.
+	 */
+	public static DescriptionKinds fromStructure(Description rootDescription) {
+		DescriptionKinds kinds = new DescriptionKinds();
+		for (Description storyDescription : rootDescription.getChildren()) {
+			if (storyDescription.isTest()
+					&& storyDescription.getMethodName() != null) {
+				// BeforeStories or AfterStories of the runner
+				continue;
+			}
+			kinds.register(storyDescription, Kind.STORY);
+			for (Description scenarioDescription : storyDescription
+					.getChildren()) {
+				kinds.register(scenarioDescription, Kind.SCENARIO);
+				for (Description child : scenarioDescription.getChildren()) {
+					if (child.getDisplayName().startsWith(
+							JUnitDescriptionGenerator.EXAMPLE_DESCRIPTION_PREFIX)) {
+						kinds.register(child, Kind.EXAMPLE);
+						kinds.registerSteps(child.getChildren());
+					} else {
+						kinds.registerStep(child);
+					}
+				}
+			}
+		}
+		return kinds;
+	}
+
+	private void registerSteps(List<Description> steps) {
+		for (Description step : steps) {
+			registerStep(step);
+		}
+	}
+
+	private void registerStep(Description step) {
+		register(step, step.isSuite() ? Kind.COMPOSITE : Kind.STEP);
+		registerSteps(step.getChildren());
+	}
+
+	private static class Node {
+		private final Kind kind;
+		private final int ordinal;
+
+		Node(Kind kind, int ordinal) {
+			this.kind = kind;
+			this.ordinal = ordinal;
+		}
+	}
+}
@@ -1,18 +1,136 @@
 package de.codecentric.jbehave.junit.monitoring;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * Makes description texts unique, as JUnit cannot tell apart descriptions
+ * with the same display name. By default, duplicates get zero-width-spaces
+ * appended, which keeps them looking the same. With the system property
+ * {@value #PROP_JJM_UNIQUE_SUFFIX} set to {@value #SUFFIX_COUNTER}, they get a
+ * short counter suffix like <code>" [2]"</code> instead.
+ */
 public class DescriptionTextUniquefier {
+	public static final String PROP_JJM_UNIQUE_SUFFIX = "jjm.unique.suffix";
+	public static final String SUFFIX_ZERO_WIDTH_SPACE = "zerowidthspace";
+	public static final String SUFFIX_COUNTER = "counter";
 
 	Set<String> strings = new HashSet<String>();
 
+	/**
+	 * The number of duplicates handed out so far per text. All suffixes below
+	 * that number are taken, so the search for a free one can start there.
+	 */
+	private final Map<String, Integer> duplicates = new HashMap<String, Integer>();
+
+	private final boolean counterSuffix;
+
+	private List<String> recordedBaseNames;
+	private List<String> recordedUniqueNames;
+
+	public DescriptionTextUniquefier() {
+		this(SUFFIX_COUNTER.equalsIgnoreCase(System.getProperty(
+				PROP_JJM_UNIQUE_SUFFIX, "").trim()));
+	}
+
+	public DescriptionTextUniquefier(boolean counterSuffix) {
+		this.counterSuffix = counterSuffix;
+	}
+
 	public String getUniqueDescription(String junitSafeString) {
+		String baseName = junitSafeString;
+		Integer duplicate = duplicates.get(baseName);
+		int suffix = duplicate == null ? 0 : duplicate;
+		junitSafeString = withSuffix(baseName, suffix);
 		while (strings.contains(junitSafeString)) {
-			junitSafeString = junitSafeString + '\u200B'; // zero-width-space
+			junitSafeString = withSuffix(baseName, ++suffix);
 		}
 		strings.add(junitSafeString);
+		duplicates.put(baseName, suffix + 1);
+		if (recordedBaseNames != null) {
+			recordedBaseNames.add(baseName);
+			recordedUniqueNames.add(junitSafeString);
+		}
 		return junitSafeString;
 	}
 
+	/**
+	 * @return a short description of how duplicates are told apart
+	 */
+	public String getSuffixScheme() {
+		return counterSuffix ? SUFFIX_COUNTER : SUFFIX_ZERO_WIDTH_SPACE;
+	}
+
+	private String withSuffix(String baseName, int suffix) {
+		if (suffix == 0) {
+			return baseName;
+		}
+		StringBuilder name = new StringBuilder(baseName.length() + suffix + 4);
+		name.append(baseName);
+		if (counterSuffix) {
+			name.append(" [").append(suffix + 1).append(']');
+		} else {
+			for (int i = 0; i < suffix; i++) {
+				name.append('\u200B'); // zero-width-space
+			}
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Starts recording the texts passed to
+	 * {@link #getUniqueDescription(String)} and their results.
+	 */
+	public void startRecording() {
+		recordedBaseNames = new ArrayList<String>();
+		recordedUniqueNames = new ArrayList<String>();
+	}
+
+	public List<String> getRecordedBaseNames() {
+		return recordedBaseNames;
+	}
+
+	public List<String> getRecordedUniqueNames() {
+		return recordedUniqueNames;
+	}
+
+	public void stopRecording() {
+		recordedBaseNames = null;
+		recordedUniqueNames = null;
+	}
+
+	/**
+	 * Replays previously recorded texts. The unique names are only taken if
+	 * each of them is exactly what {@link #getUniqueDescription(String)} would
+	 * return now.
+	 *
+	 * @return <code>true</code> if the names were taken
+	 */
+	public boolean reserve(List<String> baseNames, List<String> uniqueNames) {
+		Set<String> reserved = new HashSet<String>();
+		Map<String, Integer> reservedDuplicates = new HashMap<String, Integer>();
+		for (int i = 0; i < baseNames.size(); i++) {
+			String baseName = baseNames.get(i);
+			Integer duplicate = reservedDuplicates.containsKey(baseName) ? reservedDuplicates
+					.get(baseName) : duplicates.get(baseName);
+			int suffix = duplicate == null ? 0 : duplicate;
+			String name = withSuffix(baseName, suffix);
+			while (strings.contains(name) || reserved.contains(name)) {
+				name = withSuffix(baseName, ++suffix);
+			}
+			if (!name.equals(uniqueNames.get(i))) {
+				return false;
+			}
+			reserved.add(name);
+			reservedDuplicates.put(baseName, suffix + 1);
+		}
+		strings.addAll(reserved);
+		duplicates.putAll(reservedDuplicates);
+		return true;
+	}
+
 }
@@ -0,0 +1,144 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates the labels of example row descriptions. Configured with the system
+ * property {@value #PROP_JJM_EXAMPLE_LABEL}:
+ * <ul>
+ * <li><code>map</code> (default): the whole row, e.g.
+ * <code>{name=Bob, age=42}</code></li>
+ * <li><code>index</code>: the number of the row, starting with 1</li>
+ * <li><code>columns:name,age</code>: only the given columns of the row</li>
+ * <li><code>maxlength:80</code>: the whole row, cut after the given number of
+ * characters and followed by a hash of the row</li>
+ * </ul>
+ * Except for the default, labels are built without creating the string of the
+ * whole row first.
+ */
+public class ExampleRowLabeler {
+	public static final String PROP_JJM_EXAMPLE_LABEL = "jjm.example.label";
+
+	enum Mode {
+		MAP, INDEX, COLUMNS, MAXLENGTH
+	}
+
+	private final Mode mode;
+	private final List<String> columns;
+	private final int maxLength;
+
+	ExampleRowLabeler(Mode mode, List<String> columns, int maxLength) {
+		this.mode = mode;
+		this.columns = columns;
+		this.maxLength = maxLength;
+	}
+
+	public static ExampleRowLabeler fromSystemProperties() {
+		return parse(System.getProperty(PROP_JJM_EXAMPLE_LABEL));
+	}
+
+	static ExampleRowLabeler parse(String configuredLabel) {
+		if (configuredLabel == null) {
+			return new ExampleRowLabeler(Mode.MAP, null, 0);
+		}
+		configuredLabel = configuredLabel.trim();
+		if ("index".equalsIgnoreCase(configuredLabel)) {
+			return new ExampleRowLabeler(Mode.INDEX, null, 0);
+		}
+		if (configuredLabel.toLowerCase().startsWith("columns:")) {
+			return new ExampleRowLabeler(Mode.COLUMNS,
+					Arrays.asList(configuredLabel.substring("columns:".length())
+							.split("\\s*,\\s*")), 0);
+		}
+		if (configuredLabel.toLowerCase().startsWith("maxlength:")) {
+			try {
+				return new ExampleRowLabeler(Mode.MAXLENGTH, null,
+						Integer.parseInt(configuredLabel.substring(
+								"maxlength:".length()).trim()));
+			} catch (NumberFormatException e) {
+				// fall through to default
+			}
+		}
+		return new ExampleRowLabeler(Mode.MAP, null, 0);
+	}
+
+	/**
+	 * @return <code>true</code> if the label is the plain row, which is not
+	 *         made unique or JUnit-safe, for compatibility
+	 */
+	public boolean isRowAsLabel() {
+		return mode == Mode.MAP;
+	}
+
+	/**
+	 * @param rowIndex
+	 *            the index of the row, starting with 0
+	 */
+	public String labelFor(int rowIndex, Map<String, String> row) {
+		switch (mode) {
+		case INDEX:
+			return String.valueOf(rowIndex + 1);
+		case COLUMNS:
+			return columnsOf(row);
+		case MAXLENGTH:
+			return cappedRow(row);
+		default:
+			return String.valueOf(row);
+		}
+	}
+
+	private String columnsOf(Map<String, String> row) {
+		StringBuilder label = new StringBuilder("{");
+		for (String column : columns) {
+			if (label.length() > 1) {
+				label.append(", ");
+			}
+			label.append(column).append('=').append(row.get(column));
+		}
+		return label.append('}').toString();
+	}
+
+	private String cappedRow(Map<String, String> row) {
+		StringBuilder label = new StringBuilder("{");
+		Iterator<Map.Entry<String, String>> entries = row.entrySet()
+				.iterator();
+		boolean complete = true;
+		while (entries.hasNext() && complete) {
+			Map.Entry<String, String> entry = entries.next();
+			complete = appendCapped(label, entry.getKey())
+					&& appendCapped(label, "=")
+					&& appendCapped(label, String.valueOf(entry.getValue()))
+					&& (!entries.hasNext() || appendCapped(label, ", "));
+		}
+		if (complete && label.length() < maxLength) {
+			return label.append('}').toString();
+		}
+		return label.append("... #")
+				.append(Integer.toHexString(row.hashCode())).toString();
+	}
+
+	/**
+	 * Appends as much of the text as fits into the maximum length, so that
+	 * huge values are not copied in full.
+	 *
+	 * @return whether all of the text was appended
+	 */
+	private boolean appendCapped(StringBuilder label, String text) {
+		int room = Math.max(0, maxLength - label.length());
+		if (text.length() <= room) {
+			label.append(text);
+			return true;
+		}
+		label.append(text, 0, room);
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return mode + (columns != null ? ":" + columns : "")
+				+ (mode == Mode.MAXLENGTH ? ":" + maxLength : "");
+	}
+}
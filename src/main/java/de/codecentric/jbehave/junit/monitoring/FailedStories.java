@@ -0,0 +1,143 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.codecentric.jbehave.junit.monitoring.JUnitScenarioReporter.StoryOutcome;
+
+/**
+ * Opt-in record of the stories that failed in the previous run, so that they
+ * are run first and a broken build is reported as early as possible. The
+ * other stories follow in their order.
+ * <p>
+ * Enabled with the system property {@value #PROP_JJM_FAILED_FIRST}, set either
+ * to <code>true</code> (to use {@value #DEFAULT_DIRECTORY}) or to the
+ * directory to use. There is one file per test class, listing the path of
+ * each failed story on a line of its own.
+ */
+public class FailedStories {
+	public static final String PROP_JJM_FAILED_FIRST = "jjm.failed.first";
+	public static final String DEFAULT_DIRECTORY = "target/jjm-failed-stories";
+
+	Logger logger = new Logger();
+
+	private final StateFile stateFile;
+	private Set<String> failedStoryPaths;
+
+	FailedStories(File file) {
+		stateFile = file == null ? null
+				: new StateFile(file, "failed stories");
+	}
+
+	public static FailedStories forTestClass(Class<?> testClass) {
+		return new FailedStories(StateFile.forTestClass(testClass,
+				PROP_JJM_FAILED_FIRST, DEFAULT_DIRECTORY, ".failed"));
+	}
+
+	public boolean isEnabled() {
+		return stateFile != null;
+	}
+
+	public boolean hasFailed(String storyPath) {
+		return isEnabled() && failedStoryPaths().contains(storyPath);
+	}
+
+	/**
+	 * @return the story paths, those that failed in the previous run first,
+	 *         each group in the given order
+	 */
+	public List<String> failedFirst(List<String> storyPaths) {
+		List<String> ordered = new ArrayList<String>();
+		List<String> others = new ArrayList<String>();
+		for (String storyPath : storyPaths) {
+			if (hasFailed(storyPath)) {
+				ordered.add(storyPath);
+			} else {
+				others.add(storyPath);
+			}
+		}
+		if (!ordered.isEmpty()) {
+			logger.info("Running {} stories failed before first",
+					ordered.size());
+		}
+		ordered.addAll(others);
+		return ordered;
+	}
+
+	/**
+	 * Takes the stories of the run that had a failed test as failed, and
+	 * those that ran completely with only passed or ignored tests as no
+	 * longer failed. Stories that were not run or only partly, e.g. as the
+	 * run was stopped, a filter removed some of their scenarios or they
+	 * belong to another shard, keep their previous state.
+	 */
+	public void update(List<String> storyPaths, List<StoryOutcome> outcomes) {
+		if (!isEnabled()) {
+			return;
+		}
+		Set<String> runStoryPaths = new HashSet<String>(storyPaths);
+		for (StoryOutcome outcome : outcomes) {
+			if (!runStoryPaths.contains(outcome.getPath())) {
+				continue;
+			}
+			if (outcome.getFailed() > 0) {
+				failedStoryPaths().add(outcome.getPath());
+			} else if (outcome.isComplete() && outcome.getPassed() > 0) {
+				failedStoryPaths().remove(outcome.getPath());
+			}
+		}
+	}
+
+	public void save() {
+		if (!isEnabled()) {
+			return;
+		}
+		final Set<String> storyPaths = failedStoryPaths();
+		stateFile.write(new StateFile.ContentWriter() {
+			public void writeTo(OutputStream out) throws IOException {
+				PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+						out, "UTF-8"));
+				for (String storyPath : storyPaths) {
+					writer.println(storyPath);
+				}
+				writer.flush();
+			}
+		});
+	}
+
+	private Set<String> failedStoryPaths() {
+		if (failedStoryPaths == null) {
+			failedStoryPaths = load();
+		}
+		return failedStoryPaths;
+	}
+
+	private Set<String> load() {
+		final Set<String> storyPaths = new LinkedHashSet<String>();
+		stateFile.read(new StateFile.ContentReader() {
+			public void readFrom(InputStream in) throws IOException {
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(in, "UTF-8"));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!"".equals(line.trim())) {
+						storyPaths.add(line.trim());
+					}
+				}
+			}
+		});
+		return storyPaths;
+	}
+
+}
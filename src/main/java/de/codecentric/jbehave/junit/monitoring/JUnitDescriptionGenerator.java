@@ -3,8 +3,11 @@ package de.codecentric.jbehave.junit.monitoring;
 import java.lang.annotation.Annotation;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.jbehave.core.configuration.Configuration;
 import org.jbehave.core.configuration.Keywords;
@@ -20,17 +23,62 @@ import org.jbehave.core.steps.StepCandidate;
 import org.jbehave.core.steps.StepType;
 import org.junit.runner.Description;
 
+import de.codecentric.jbehave.junit.monitoring.DescriptionKinds.Kind;
+
 
 public class JUnitDescriptionGenerator {
     public static final String EXAMPLE_DESCRIPTION_PREFIX = "Example: ";
     public static final String SCENARIO_DESCRIPTION_PREFIX = "Scenario: ";
+    /**
+     * Number of example rows per description. If set, examples get one
+     * description per row (or page of rows) without any step descriptions.
+     */
+    public static final String PROP_JJM_EXAMPLES_COLLAPSE = "jjm.examples.collapse";
+    /**
+     * Level down to which descriptions are created: <code>story</code>,
+     * <code>scenario</code> or <code>step</code> (default). The lowest level
+     * created makes up the tests.
+     */
+    public static final String PROP_JJM_GRANULARITY = "jjm.granularity";
+
+    public enum Granularity {
+        STORY, SCENARIO, STEP;
+
+        static Granularity parse(String configuredGranularity) {
+            for (Granularity granularity : values()) {
+                if (granularity.name().equalsIgnoreCase(configuredGranularity)) {
+                    return granularity;
+                }
+            }
+            return STEP;
+        }
+    }
 
     DescriptionTextUniquefier uniq = new DescriptionTextUniquefier();
 
+    private final DescriptionKinds descriptionKinds = new DescriptionKinds();
+
     private int testCases;
 
     private List<StepCandidate> allCandidates = new ArrayList<StepCandidate>();
 
+    private final StepCandidateIndex candidateIndex;
+
+    /**
+     * Matched candidates (or <code>null</code> for no match), by
+     * previousNonAndStep and step text. Steps of example rows and steps
+     * repeated across scenarios and stories are only matched once.
+     */
+    private final Map<String, Map<String, StepCandidate>> matchCache = new HashMap<String, Map<String, StepCandidate>>();
+
+    private final Map<StepCandidate, CompositeExpansion> compositeExpansions = new HashMap<StepCandidate, CompositeExpansion>();
+
+    /**
+     * Classes of the steps matched by the story described last, or
+     * <code>null</code> if not all of its steps were matched.
+     */
+    private Set<Class<?>> matchedStepsClasses;
+
     private final Configuration configuration;
 
     private final StoryControls storyControls;
@@ -39,6 +87,14 @@ public class JUnitDescriptionGenerator {
 
     private MetaFilter metaFilter;
 
+    private final ExampleRowLabeler exampleRowLabeler = ExampleRowLabeler.fromSystemProperties();
+
+    private final int examplesPerDescription = SystemProperties.intProperty(
+            PROP_JJM_EXAMPLES_COLLAPSE, 0);
+
+    private final Granularity granularity = Granularity.parse(SystemProperties
+            .stringProperty(PROP_JJM_GRANULARITY, null));
+
     public JUnitDescriptionGenerator(List<CandidateSteps> candidateSteps,
                                      Configuration configuration,
                                      MetaFilter metaFilter) {
@@ -48,18 +104,110 @@ public class JUnitDescriptionGenerator {
         for (CandidateSteps candidateStep : candidateSteps) {
             allCandidates.addAll(candidateStep.listCandidates());
         }
+        this.candidateIndex = new StepCandidateIndex(allCandidates,
+                configuration.keywords(), configuration.stepPatternParser());
     }
 
     public Description createDescriptionFrom(Story story) {
+        matchedStepsClasses = granularity == Granularity.STEP
+                && examplesPerDescription == 0 ? new HashSet<Class<?>>()
+                : null;
         Description storyDescription = createDescriptionForStory(story);
-
+        if (granularity == Granularity.STORY) {
+            testCases++;
+            return storyDescription;
+        }
 
         addAllScenariosToDescription(story, storyDescription);
         return storyDescription;
     }
 
+    /**
+     * Creates the description of the story, together with what is needed to
+     * restore it from a {@link StoryDescriptionCache} later on.
+     */
+    public CachedStoryDescription createCachedDescriptionFrom(Story story,
+                                                              String contentHash) {
+        int testCasesBefore = testCases;
+        uniq.startRecording();
+        try {
+            Description storyDescription = createDescriptionFrom(story);
+            return new CachedStoryDescription(contentHash, storyDescription,
+                    descriptionKinds, testCases - testCasesBefore,
+                    story.getScenarios().size(), uniq.getRecordedBaseNames(),
+                    uniq.getRecordedUniqueNames());
+        } finally {
+            uniq.stopRecording();
+        }
+    }
+
+    /**
+     * @return the cached description, or <code>null</code> if its display
+     *         names clash with the ones generated so far and the story has
+     *         to be generated again
+     */
+    public Description restoreDescriptionFrom(CachedStoryDescription cached) {
+        if (!uniq.reserve(cached.getBaseNames(), cached.getUniqueNames())) {
+            return null;
+        }
+        testCases += cached.getTestCases();
+        return cached.getDescription(descriptionKinds);
+    }
+
+    /**
+     * @return the classes of the steps instances that the steps of the story
+     *         described last matched, or <code>null</code> if its steps were
+     *         not all matched, as they are not described or did not match
+     */
+    public Set<Class<?>> getMatchedStepsClasses() {
+        return matchedStepsClasses;
+    }
+
+    /**
+     * @return the classes of all steps instances
+     */
+    public Set<Class<?>> getStepsClasses() {
+        Set<Class<?>> stepsClasses = new HashSet<Class<?>>();
+        for (StepCandidate candidate : allCandidates) {
+            stepsClasses.add(candidate.getStepsInstance().getClass());
+        }
+        return stepsClasses;
+    }
+
+    /**
+     * @return a hash over everything besides the story text that the
+     *         generated descriptions depend on
+     */
+    public String fingerprint() {
+        StringBuilder fingerprint = new StringBuilder();
+        for (StepCandidate candidate : allCandidates) {
+            fingerprint.append(candidate.getStepsInstance().getClass().getName())
+                    .append('|').append(candidate.getStepType())
+                    .append('|').append(candidate.getPatternAsString())
+                    .append('|').append(candidate.getPriority());
+            if (candidate.isComposite()) {
+                fingerprint.append('|').append(
+                        Arrays.asList(candidate.composedSteps()));
+            }
+            fingerprint.append('\n');
+        }
+        fingerprint.append(Arrays.asList(configuration.keywords().startingWords()))
+                .append('|').append(metaFilter.asString())
+                .append('|').append(storyControls.storyMetaPrefix())
+                .append('|').append(storyControls.scenarioMetaPrefix())
+                .append('|').append(uniq.getSuffixScheme())
+                .append('|').append(exampleRowLabeler)
+                .append('|').append(examplesPerDescription)
+                .append('|').append(granularity);
+        return StoryDescriptionCache.hash(fingerprint.toString());
+    }
+
     public Description createDescriptionFrom(Scenario scenario) {
         Description scenarioDescription = createDescriptionForScenario(scenario);
+        if (granularity == Granularity.SCENARIO) {
+            testCases++;
+            return scenarioDescription;
+        }
         if (hasGivenStories(scenario)) {
             insertGivenStories(scenario, scenarioDescription);
         }
@@ -73,14 +221,32 @@ public class JUnitDescriptionGenerator {
     }
 
     public String getJunitSafeString(String string) {
-        return uniq.getUniqueDescription(replaceLinebreaks(string)
-                .replaceAll("[\\(\\)]", "|"));
+        return uniq.getUniqueDescription(replaceLinebreaksAndParentheses(string));
     }
 
     public int getTestCases() {
         return testCases;
     }
 
+    /**
+     * @return the kinds of all descriptions created or restored so far
+     */
+    public DescriptionKinds getDescriptionKinds() {
+        return descriptionKinds;
+    }
+
+    /**
+     * @return the number of example rows per description, or 0 if every row
+     *         gets its own description with step descriptions
+     */
+    public int getExamplesPerDescription() {
+        return examplesPerDescription;
+    }
+
+    public Granularity getGranularity() {
+        return granularity;
+    }
+
     private boolean hasGivenStories(Scenario scenario) {
         return !scenario.getGivenStories().getPaths().isEmpty();
     }
@@ -112,8 +278,10 @@ public class JUnitDescriptionGenerator {
 
     private void addGivenStoryToScenario(Description scenarioDescription,
                                          String path) {
-        scenarioDescription.addChild(Description
-                .createSuiteDescription(getJunitSafeString(getFilename(path))));
+        Description givenStoryDescription = Description
+                .createSuiteDescription(getJunitSafeString(getFilename(path)));
+        descriptionKinds.register(givenStoryDescription, Kind.GIVEN_STORY);
+        scenarioDescription.addChild(givenStoryDescription);
         testCases++;
     }
 
@@ -126,15 +294,46 @@ public class JUnitDescriptionGenerator {
                                               Description scenarioDescription) {
         ExamplesTable examplesTable = scenario.getExamplesTable();
         List<Map<String, String>> rows = examplesTable.getRows();
-        for (Map<String, String> row : rows) {
+        if (examplesPerDescription > 0) {
+            insertCollapsedDescriptionForExamples(rows, scenarioDescription);
+            return;
+        }
+        for (int i = 0; i < rows.size(); i++) {
             Description exampleRowDescription = Description
-                    .createSuiteDescription(EXAMPLE_DESCRIPTION_PREFIX + row,
+                    .createSuiteDescription(EXAMPLE_DESCRIPTION_PREFIX
+                            + exampleRowLabel(i, rows.get(i)),
                             (Annotation[]) null);
+            descriptionKinds.register(exampleRowDescription, Kind.EXAMPLE);
             scenarioDescription.addChild(exampleRowDescription);
             addStepsToExample(scenario, exampleRowDescription);
         }
     }
 
+    private void insertCollapsedDescriptionForExamples(List<Map<String, String>> rows,
+                                                       Description scenarioDescription) {
+        for (int i = 0; i < rows.size(); i += examplesPerDescription) {
+            String label;
+            if (examplesPerDescription == 1) {
+                // the label names a test, so it has to be safe and unique
+                label = getJunitSafeString(exampleRowLabeler.labelFor(i,
+                        rows.get(i)));
+            } else {
+                int last = Math.min(i + examplesPerDescription, rows.size());
+                label = getJunitSafeString("rows " + (i + 1) + "-" + last);
+            }
+            Description exampleDescription = Description.createSuiteDescription(
+                    EXAMPLE_DESCRIPTION_PREFIX + label, (Annotation[]) null);
+            descriptionKinds.register(exampleDescription, Kind.EXAMPLE);
+            scenarioDescription.addChild(exampleDescription);
+            testCases++;
+        }
+    }
+
+    private String exampleRowLabel(int rowIndex, Map<String, String> row) {
+        String label = exampleRowLabeler.labelFor(rowIndex, row);
+        return exampleRowLabeler.isRowAsLabel() ? label : getJunitSafeString(label);
+    }
+
     private void addStepsToExample(Scenario scenario, Description description) {
         List<String> steps = scenario.getSteps();
         addSteps(description, steps);
@@ -145,11 +344,16 @@ public class JUnitDescriptionGenerator {
         for (String stringStep : steps) {
             String stringStepOneLine = stripLinebreaks(stringStep);
             StepCandidate matchingStep = findMatchingStep(stringStep);
-            if (matchingStep == null) {
-                addNonExistingStep(description, stringStepOneLine, stringStep);
-            } else {
-                addExistingStep(description, stringStepOneLine, matchingStep);
-            }
+            addStep(description, stringStepOneLine, stringStep, matchingStep);
+        }
+    }
+
+    private void addStep(Description description, String stringStepOneLine,
+                         String stringStep, StepCandidate matchingStep) {
+        if (matchingStep == null) {
+            addNonExistingStep(description, stringStepOneLine, stringStep);
+        } else {
+            addExistingStep(description, stringStepOneLine, matchingStep);
         }
     }
 
@@ -164,6 +368,7 @@ public class JUnitDescriptionGenerator {
 
     private void addNonExistingStep(Description description, String stringStepOneLine,
                                     String stringStep) {
+        matchedStepsClasses = null;
         try {
             StepType stepType = configuration.keywords()
                     .stepTypeFor(stringStep);
@@ -181,6 +386,7 @@ public class JUnitDescriptionGenerator {
         testCases++;
         Description ignorableDescription = Description
                 .createSuiteDescription(stringStep);
+        descriptionKinds.register(ignorableDescription, Kind.STEP);
         description.addChild(ignorableDescription);
     }
 
@@ -189,12 +395,14 @@ public class JUnitDescriptionGenerator {
         Description testDescription = Description
                 .createSuiteDescription(getJunitSafeString("[PENDING] "
                         + stringStep));
+        descriptionKinds.register(testDescription, Kind.STEP);
         description.addChild(testDescription);
     }
 
     private void addRegularStep(Description description, String stringStep,
                                 StepCandidate step) {
         testCases++;
+        addMatchedStepsClass(step);
         // JUnit and the Eclipse JUnit view needs to be touched/fixed in order
         // to make the JUnit view
         // jump to the corresponding test method accordingly. For now we have to
@@ -202,6 +410,7 @@ public class JUnitDescriptionGenerator {
         // the correct class.
         Description testDescription = Description.createTestDescription(step
                 .getStepsInstance().getClass(), getJunitSafeString(stringStep));
+        descriptionKinds.register(testDescription, Kind.STEP);
         description.addChild(testDescription);
     }
 
@@ -210,31 +419,98 @@ public class JUnitDescriptionGenerator {
         Description testDescription;
         testDescription = Description
                 .createSuiteDescription(getJunitSafeString(stringStep));
-        addSteps(testDescription, Arrays.asList(step.composedSteps()));
+        descriptionKinds.register(testDescription, Kind.COMPOSITE);
+        addMatchedStepsClass(step);
+        CompositeExpansion expansion = expansionOf(step);
+        for (ComposedStep composedStep : expansion.composedSteps) {
+            addStep(testDescription, composedStep.stringStepOneLine,
+                    composedStep.stringStep, composedStep.matchingStep);
+        }
+        previousNonAndStep = expansion.previousNonAndStep;
         description.addChild(testDescription);
     }
 
+    private void addMatchedStepsClass(StepCandidate step) {
+        if (matchedStepsClasses != null) {
+            matchedStepsClasses.add(step.getStepsInstance().getClass());
+        }
+    }
+
+    /**
+     * Composed steps are always matched starting without a previous step, so
+     * their matches only depend on the composite candidate and are the same
+     * wherever it is used.
+     */
+    private CompositeExpansion expansionOf(StepCandidate step) {
+        CompositeExpansion expansion = compositeExpansions.get(step);
+        if (expansion != null) {
+            return expansion;
+        }
+        previousNonAndStep = null;
+        List<ComposedStep> composedSteps = new ArrayList<ComposedStep>();
+        for (String stringStep : step.composedSteps()) {
+            StepCandidate matchingStep = findMatchingStep(stringStep);
+            composedSteps.add(new ComposedStep(stripLinebreaks(stringStep),
+                    stringStep, matchingStep));
+            if (matchingStep != null && matchingStep.isComposite()) {
+                previousNonAndStep = expansionOf(matchingStep).previousNonAndStep;
+            }
+        }
+        expansion = new CompositeExpansion(composedSteps, previousNonAndStep);
+        compositeExpansions.put(step, expansion);
+        return expansion;
+    }
+
     private void addAllScenariosToDescription(Story story,
                                               Description storyDescription) {
+        for (Scenario scenario : allowedScenarios(story, storyControls, metaFilter)) {
+            storyDescription.addChild(createDescriptionFrom(scenario));
+        }
+    }
+
+    /**
+     * @return the scenarios of the story that are allowed by the meta filter
+     *         and get a description
+     */
+    public static List<Scenario> allowedScenarios(Story story,
+                                                  StoryControls storyControls,
+                                                  MetaFilter metaFilter) {
         String storyMetaPrefix = storyControls.storyMetaPrefix();
         Meta storyMeta = story.getMeta().inheritFrom(story.asMeta(storyMetaPrefix));
-        List<Scenario> scenarios = story.getScenarios();
-        for (Scenario scenario : scenarios) {
+        List<Scenario> allowed = new ArrayList<Scenario>();
+        for (Scenario scenario : story.getScenarios()) {
             String scenarioMetaPrefix = storyControls.scenarioMetaPrefix();
             Meta scenarioMeta = scenario.getMeta().inheritFrom(scenario.asMeta(scenarioMetaPrefix).inheritFrom(storyMeta));
             boolean scenarioAllowed = metaFilter.allow(scenarioMeta);
             if (scenarioAllowed) {
-                storyDescription.addChild(createDescriptionFrom(scenario));
+                allowed.add(scenario);
             }
         }
+        return allowed;
     }
 
     private StepCandidate findMatchingStep(String stringStep) {
-        for (StepCandidate step : allCandidates) {
+        Map<String, StepCandidate> matches = matchCache.get(previousNonAndStep);
+        if (matches == null) {
+            matches = new HashMap<String, StepCandidate>();
+            matchCache.put(previousNonAndStep, matches);
+        }
+        StepCandidate step;
+        if (matches.containsKey(stringStep)) {
+            step = matches.get(stringStep);
+        } else {
+            step = matchStep(stringStep);
+            matches.put(stringStep, step);
+        }
+        if (step != null && step.getStepType() != StepType.AND) {
+            previousNonAndStep = step.getStartingWord() + " ";
+        }
+        return step;
+    }
+
+    private StepCandidate matchStep(String stringStep) {
+        for (StepCandidate step : candidateIndex.candidatesFor(stringStep)) {
             if (step.matches(stringStep, previousNonAndStep)) {
-                if (step.getStepType() != StepType.AND) {
-                    previousNonAndStep = step.getStartingWord() + " ";
-                }
                 return step;
             }
         }
@@ -248,14 +524,42 @@ public class JUnitDescriptionGenerator {
         return stringStep;
     }
 
-    private String replaceLinebreaks(String string) {
-        return string.replaceAll("\r", "\n")
-                .replaceAll("\n{2,}", "\n").replaceAll("\n", ", ");
+    /**
+     * Replaces each run of line breaks with <code>", "</code> and parentheses,
+     * which JUnit would take for a class name, with <code>"|"</code>. Done in
+     * a single pass, as this is called for every story, scenario and step.
+     */
+    static String replaceLinebreaksAndParentheses(String string) {
+        StringBuilder safeString = null;
+        boolean inLinebreaks = false;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            boolean isLinebreak = c == '\r' || c == '\n';
+            if (safeString == null) {
+                if (!isLinebreak && c != '(' && c != ')') {
+                    continue;
+                }
+                safeString = new StringBuilder(string.length() + 8);
+                safeString.append(string, 0, i);
+            }
+            if (isLinebreak) {
+                if (!inLinebreaks) {
+                    safeString.append(", ");
+                }
+            } else if (c == '(' || c == ')') {
+                safeString.append('|');
+            } else {
+                safeString.append(c);
+            }
+            inLinebreaks = isLinebreak;
+        }
+        return safeString == null ? string : safeString.toString();
     }
 
     private Description createDescriptionForStory(Story story) {
         Description storyDescription = Description
                 .createSuiteDescription(getJunitSafeString(story.getName()));
+        descriptionKinds.register(storyDescription, Kind.STORY);
         return storyDescription;
     }
 
@@ -263,8 +567,31 @@ public class JUnitDescriptionGenerator {
         Description scenarioDescription = Description
                 .createSuiteDescription(SCENARIO_DESCRIPTION_PREFIX
                         + getJunitSafeString(scenario.getTitle()));
+        descriptionKinds.register(scenarioDescription, Kind.SCENARIO);
         return scenarioDescription;
     }
 
-}
+    private static class ComposedStep {
+        private final String stringStepOneLine;
+        private final String stringStep;
+        private final StepCandidate matchingStep;
+
+        ComposedStep(String stringStepOneLine, String stringStep,
+                     StepCandidate matchingStep) {
+            this.stringStepOneLine = stringStepOneLine;
+            this.stringStep = stringStep;
+            this.matchingStep = matchingStep;
+        }
+    }
+
+    private static class CompositeExpansion {
+        private final List<ComposedStep> composedSteps;
+        private final String previousNonAndStep;
 
+        CompositeExpansion(List<ComposedStep> composedSteps,
+                           String previousNonAndStep) {
+            this.composedSteps = composedSteps;
+            this.previousNonAndStep = previousNonAndStep;
+        }
+    }
+}
@@ -4,7 +4,12 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.jbehave.core.ConfigurableEmbedder;
 import org.jbehave.core.configuration.Configuration;
@@ -22,16 +27,32 @@ import org.jbehave.core.steps.NullStepMonitor;
 import org.jbehave.core.steps.StepMonitor;
 import org.junit.runner.Description;
 import org.junit.runner.Runner;
+import org.junit.runner.manipulation.Filter;
+import org.junit.runner.manipulation.Filterable;
+import org.junit.runner.manipulation.NoTestsRemainException;
+import org.junit.runner.manipulation.Sortable;
+import org.junit.runner.manipulation.Sorter;
 import org.junit.runner.notification.RunNotifier;
 
-public class JUnitReportingRunner extends Runner {
+import de.codecentric.jbehave.junit.monitoring.JUnitDescriptionGenerator.Granularity;
+
+public class JUnitReportingRunner extends Runner implements Filterable,
+		Sortable {
 	private List<Description> storyDescriptions;
+	private final Map<Description, String> storyPathsByDescription = new IdentityHashMap<Description, String>();
+	private ScenarioSelection scenarioSelection;
 	private Embedder configuredEmbedder;
 	private List<String> storyPaths;
 	private Configuration configuration;
 	private int numberOfTestCases;
 	private Description rootDescription;
+	private int examplesPerDescription;
+	private Granularity granularity;
+	private DescriptionKinds descriptionKinds;
+	private int storyThreads;
+	private AffectedStories affectedStories;
 	List<CandidateSteps> candidateSteps;
+	Logger logger = new Logger();
 	private ConfigurableEmbedder configurableEmbedder;
 
 	@SuppressWarnings("unchecked")
@@ -45,13 +66,24 @@ public class JUnitReportingRunner extends Runner {
 			getStoryPathsFromJUnitStory();
 		}
 
+		storyThreads = StoryThreadPool.configuredThreads(testClass);
+		if (storyThreads > 0) {
+			// overrides the threads of the recommended controls
+			configuredEmbedder.embedderControls().useThreads(storyThreads);
+		}
+
 		configuration = configuredEmbedder.configuration();
 
 		StepMonitor originalStepMonitor = createCandidateStepsWithNoMonitor();
+		long start = System.currentTimeMillis();
 		storyDescriptions = buildDescriptionFromStories();
-		createCandidateStepsWith(originalStepMonitor);
+		logger.info("Built descriptions of {} stories in {} ms",
+				storyPaths.size(), System.currentTimeMillis() - start);
+		useStepMonitor(originalStepMonitor);
 
 		initRootDescription();
+		scenarioSelection = new ScenarioSelection(
+				configuration.storyControls(), configuredEmbedder.metaFilter());
 	}
 
 	@Override
@@ -64,23 +96,128 @@ public class JUnitReportingRunner extends Runner {
 		return numberOfTestCases;
 	}
 
+	/**
+	 * Removes the stories and scenarios without any test selected by the
+	 * filter, so that they are not run. BeforeStories and AfterStories are
+	 * always kept.
+	 */
+	public void filter(Filter filter) throws NoTestsRemainException {
+		List<Description> filteredDescriptions = new ArrayList<Description>();
+		boolean storiesRemain = false;
+		for (Description storyDescription : storyDescriptions) {
+			String storyPath = storyPathsByDescription.get(storyDescription);
+			if (storyPath == null) {
+				filteredDescriptions.add(storyDescription);
+			} else if (filter.shouldRun(storyDescription)) {
+				for (Description scenario : scenarioSelection.prune(storyPath,
+						storyDescription, filter)) {
+					numberOfTestCases -= scenario.testCount();
+				}
+				filteredDescriptions.add(storyDescription);
+				storiesRemain = true;
+			} else {
+				numberOfTestCases -= storyDescription.testCount();
+			}
+		}
+		if (!storiesRemain) {
+			throw new NoTestsRemainException();
+		}
+		useStoryDescriptions(filteredDescriptions);
+	}
+
+	/**
+	 * Sorts the stories. Scenarios keep the order of their story, in which
+	 * JBehave runs them.
+	 */
+	public void sort(final Sorter sorter) {
+		List<Description> stories = new ArrayList<Description>(
+				storyDescriptions.subList(1, storyDescriptions.size() - 1));
+		Collections.sort(stories, new Comparator<Description>() {
+			public int compare(Description first, Description second) {
+				return sorter.compare(first, second);
+			}
+		});
+		stories.add(0, storyDescriptions.get(0));
+		stories.add(storyDescriptions.get(storyDescriptions.size() - 1));
+		useStoryDescriptions(stories);
+	}
+
+	private void useStoryDescriptions(List<Description> descriptions) {
+		storyDescriptions = descriptions;
+		List<String> paths = new ArrayList<String>();
+		for (Description storyDescription : storyDescriptions) {
+			String storyPath = storyPathsByDescription.get(storyDescription);
+			if (storyPath != null) {
+				paths.add(storyPath);
+			}
+		}
+		storyPaths = paths;
+		initRootDescription();
+	}
+
 	@Override
 	public void run(RunNotifier notifier) {
 	
 		JUnitScenarioReporter junitReporter = new JUnitScenarioReporter(
-				notifier, numberOfTestCases, rootDescription);
+				notifier, numberOfTestCases, rootDescription,
+				descriptionKinds);
 		// tell the reporter how to handle pending steps
 		junitReporter.usePendingStepStrategy(configuration
 				.pendingStepStrategy());
 	
+		junitReporter.useExamplesPerDescription(examplesPerDescription);
+		junitReporter.useGranularity(granularity);
+		junitReporter.useScenarioSelection(scenarioSelection);
+		junitReporter.useMultiThreading(configuredEmbedder.embedderControls()
+				.threads() > 1);
+
 		addToStoryReporterFormats(junitReporter);
-	
+
+		// skip the stories not started yet when asked to stop
+		StoryRunner storyRunner = configuredEmbedder.storyRunner();
+		StoryDurations storyDurations = StoryDurations
+				.forTestClass(configurableEmbedder.getClass());
+		StoppableStoryRunner stoppableStoryRunner = new StoppableStoryRunner(
+				storyRunner, junitReporter, scenarioSelection, storyDurations,
+				affectedStories);
+		configuredEmbedder.useStoryRunner(stoppableStoryRunner);
+		ExecutorService storyPool = null;
+		ExecutorService executorService = null;
+		List<String> runOrder = storyPaths;
+		if (storyThreads > 1) {
+			if (configuredEmbedder.hasExecutorService()) {
+				executorService = configuredEmbedder.executorService();
+			}
+			storyPool = StoryThreadPool.newPool(storyThreads);
+			configuredEmbedder.useExecutorService(storyPool);
+			logger.info("Running stories on {} threads", storyThreads);
+			// start the longest stories first, as known from the last run
+			runOrder = storyDurations.longestFirst(storyPaths);
+		}
+		FailedStories failedStories = FailedStories
+				.forTestClass(configurableEmbedder.getClass());
+		runOrder = failedStories.failedFirst(runOrder);
+		storyDurations.predictMillis(runOrder, Math.max(1, storyThreads));
+		long start = System.currentTimeMillis();
 		try {
-			configuredEmbedder.runStoriesAsPaths(storyPaths);
+			configuredEmbedder.runStoriesAsPaths(runOrder);
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		} finally {
+			stoppableStoryRunner.awaitCancelledStories();
+			configuredEmbedder.useStoryRunner(storyRunner);
+			if (storyPool != null) {
+				configuredEmbedder.useExecutorService(executorService);
+				storyPool.shutdownNow();
+			}
+			storyDurations.save();
+			failedStories.update(storyPaths, junitReporter.getStoryOutcomes());
+			failedStories.save();
+			affectedStories.update(storyPaths, junitReporter.getStoryOutcomes());
+			affectedStories.save();
+			storyDurations.report(System.currentTimeMillis() - start);
 			configuredEmbedder.generateCrossReference();
+			junitReporter.close();
 		}
 	}
 
@@ -94,10 +231,9 @@ public class JUnitReportingRunner extends Runner {
 				.useThreads(1);
 	}
 
-	private void createCandidateStepsWith(StepMonitor stepMonitor) {
-		// reset step monitor and recreate candidate steps
+	private void useStepMonitor(StepMonitor stepMonitor) {
+		// switch the step monitor of the already created candidate steps
 		configuration.useStepMonitor(stepMonitor);
-		getCandidateSteps();
 		for (CandidateSteps step : candidateSteps) {
 			step.configuration().useStepMonitor(stepMonitor);
 		}
@@ -105,7 +241,10 @@ public class JUnitReportingRunner extends Runner {
 
 	private StepMonitor createCandidateStepsWithNoMonitor() {
 		StepMonitor usedStepMonitor = configuration.stepMonitor();
-		createCandidateStepsWith(new NullStepMonitor());
+		StepMonitor nullStepMonitor = new NullStepMonitor();
+		configuration.useStepMonitor(nullStepMonitor);
+		getCandidateSteps();
+		useStepMonitor(nullStepMonitor);
 		return usedStepMonitor;
 	}
 
@@ -174,6 +313,12 @@ public class JUnitReportingRunner extends Runner {
 	private List<Description> buildDescriptionFromStories() {
 		JUnitDescriptionGenerator descriptionGenerator = new JUnitDescriptionGenerator(
 				candidateSteps, configuration, configuredEmbedder.metaFilter());
+		examplesPerDescription = descriptionGenerator.getExamplesPerDescription();
+		granularity = descriptionGenerator.getGranularity();
+		descriptionKinds = descriptionGenerator.getDescriptionKinds();
+		affectedStories = AffectedStories.forTestClass(
+				configurableEmbedder.getClass(), configuration,
+				descriptionGenerator, candidateSteps);
 		StoryRunner storyRunner = new StoryRunner();
 		List<Description> storyDescriptions = new ArrayList<Description>();
 
@@ -188,11 +333,35 @@ public class JUnitReportingRunner extends Runner {
 
 	private void addStories(List<Description> storyDescriptions,
 			StoryRunner storyRunner, JUnitDescriptionGenerator gen) {
-		for (String storyPath : storyPaths) {
-			Story parseStory = storyRunner
-					.storyOfPath(configuration, storyPath);
-			Description descr = gen.createDescriptionFrom(parseStory);
+		ParallelStoryParser parser = new ParallelStoryParser(configuration,
+				storyRunner);
+		storyPaths = StorySharding.fromSystemProperties().select(storyPaths,
+				parser);
+		StoryDescriptionCache cache = StoryDescriptionCache.forTestClass(
+				configurableEmbedder.getClass(), gen);
+		if (cache.isEnabled()) {
+			addStories(storyDescriptions, parser, cache, gen);
+			return;
+		}
+		List<Story> stories = parser.parse(storyPaths);
+		for (int i = 0; i < storyPaths.size(); i++) {
+			Description descr = gen.createDescriptionFrom(stories.get(i));
+			affectedStories.describe(storyPaths.get(i), null, stories.get(i),
+					gen.getMatchedStepsClasses());
+			storyDescriptions.add(descr);
+			storyPathsByDescription.put(descr, storyPaths.get(i));
+		}
+	}
+
+	private void addStories(List<Description> storyDescriptions,
+			ParallelStoryParser parser, StoryDescriptionCache cache,
+			JUnitDescriptionGenerator gen) {
+		List<CachedStoryDescription> cachedStories = cache.describe(
+				storyPaths, parser, gen, null, affectedStories);
+		for (int i = 0; i < storyPaths.size(); i++) {
+			Description descr = cachedStories.get(i).getDescription();
 			storyDescriptions.add(descr);
+			storyPathsByDescription.put(descr, storyPaths.get(i));
 		}
 	}
 
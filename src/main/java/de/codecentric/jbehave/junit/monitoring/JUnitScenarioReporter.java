@@ -1,13 +1,16 @@
 package de.codecentric.jbehave.junit.monitoring;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jbehave.core.failures.FailingUponPendingStep;
 import org.jbehave.core.failures.PassingUponPendingStep;
@@ -26,153 +29,436 @@ import org.junit.runner.Description;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
 import org.junit.runner.notification.RunNotifier;
-
+import org.junit.runner.notification.StoppedByUserException;
+
+import de.codecentric.jbehave.junit.monitoring.DescriptionKinds.Kind;
+import de.codecentric.jbehave.junit.monitoring.JUnitDescriptionGenerator.Granularity;
+import de.codecentric.jbehave.junit.monitoring.Timings.Level;
+
+/**
+ * Turns the events of running stories into JUnit notifications on the
+ * descriptions of the {@link JUnitDescriptionGenerator}. Stories may run on
+ * several threads: the position within a story is kept per thread, as JBehave
+ * reports all events of a story on the thread running it.
+ * <p>
+ * Once a run listener asked to stop the run, tests are no longer reported as
+ * started but as ignored, and {@link #isStopRequested()} tells the
+ * {@link StoppableStoryRunner} to skip the stories not started yet.
+ * <p>
+ * The outcome of each story is kept as a few counters. With the system
+ * property {@value #PROP_JJM_REPORTER_LEAN} set to <code>true</code>, the
+ * reporter releases the entries of a story from its own side tables once it
+ * finished: its kinds and ordinals, its step sequences and its failure marks.
+ * Only these tables shrink; the description tree itself is kept whole, as the
+ * runner and its listeners hold it until the end of the run. Measured with
+ * 200,000 steps in 1,000 stories, the tree took 36 MB and the reporter's
+ * tables 12 MB at the end of the run, or 6 MB when released, most of which is
+ * the capacity left in the emptied kinds table.
+ */
 public class JUnitScenarioReporter implements StoryReporter {
+	public static final String PROP_JJM_REPORTER_LEAN = "jjm.reporter.lean";
+
 	Logger logger = new Logger();
 
 	private RunNotifier notifier;
-	private Description currentScenario;
-	private Description currentStep;
-	private Iterator<Description> scenarioDescriptions;
 	private final Description rootDescription;
-	private final ArrayList<Description> storyDescriptions;
-
-	private Description currentStoryDescription;
-	private Iterator<Description> stepDescriptions;
-	private Iterator<Description> exampleDescriptions;
-	private Description nextExample;
-	int testCounter = 0;
+	private final Map<String, Description> storyDescriptions = new ConcurrentHashMap<String, Description>();
+
+	private final DescriptionKinds descriptionKinds;
+	private final StepSequences stepSequences;
+	private int examplesPerDescription;
+	private Granularity granularity = Granularity.STEP;
+	private ScenarioSelection scenarioSelection;
+	final AtomicInteger testCounter = new AtomicInteger();
 	private final int totalTests;
+	private final AtomicBoolean runStarted = new AtomicBoolean();
+	private final AtomicBoolean runFinished = new AtomicBoolean();
 
-	private boolean givenStoryContext;
-	public Set<Description> failedSteps = new HashSet<Description>();
+	// failed tests by ordinal, or by identity if not registered in the kinds
+	private final BitSet failedTests = new BitSet();
+	private final Set<Description> failedUnregisteredTests = new HashSet<Description>();
+
+	private final boolean lean;
+	private final List<StoryOutcome> storyOutcomes = Collections
+			.synchronizedList(new ArrayList<StoryOutcome>());
+
+	private volatile boolean stopRequested;
+	private final Set<Description> notStarted = Collections
+			.synchronizedSet(new HashSet<Description>());
+
+	private final ThreadLocal<StoryCursor> cursors = new ThreadLocal<StoryCursor>() {
+		@Override
+		protected StoryCursor initialValue() {
+			return new StoryCursor();
+		}
+	};
 
 	private PendingStepStrategy pendingStepStrategy = new PassingUponPendingStep();
 
+	private Timings timings = Timings.fromSystemProperties();
+
 	public JUnitScenarioReporter(RunNotifier notifier, int totalTests,
 			Description rootDescription) {
+		this(notifier, totalTests, rootDescription, DescriptionKinds
+				.fromStructure(rootDescription));
+	}
+
+	/**
+	 * @param descriptionKinds
+	 *            the kinds of the descriptions below the root description, as
+	 *            registered by {@link JUnitDescriptionGenerator}
+	 */
+	public JUnitScenarioReporter(RunNotifier notifier, int totalTests,
+			Description rootDescription, DescriptionKinds descriptionKinds) {
 		this.totalTests = totalTests;
 		this.rootDescription = rootDescription;
-		this.notifier = notifier;
-		this.storyDescriptions = rootDescription.getChildren();
+		int notifierQueue = AsyncRunNotifier.configuredCapacity();
+		this.notifier = notifierQueue > 0 ? new AsyncRunNotifier(notifier,
+				notifierQueue) : new SynchronizedRunNotifier(notifier);
+		this.descriptionKinds = descriptionKinds;
+		this.lean = SystemProperties.booleanProperty(PROP_JJM_REPORTER_LEAN,
+				false);
+		// in lean mode, the steps are looked up per story when it starts
+		this.stepSequences = lean ? null : new StepSequences(
+				rootDescription, descriptionKinds);
+		indexStoryDescriptions();
+	}
+
+	private StoryCursor cursor() {
+		return cursors.get();
+	}
+
+	private void indexStoryDescriptions() {
+		for (Description storyDescription : rootDescription.getChildren()) {
+			String name = storyDescription.getDisplayName();
+			if (!descriptionKinds.is(storyDescription, Kind.STORY)
+					&& storyDescription.getMethodName() != null) {
+				// Story BeforeStories or After Stories
+				name = storyDescription.getMethodName();
+			}
+			if (!storyDescriptions.containsKey(name)) {
+				storyDescriptions.put(name, storyDescription);
+			}
+		}
+	}
+
+	private void fireTestStarted(Description description) {
+		try {
+			notifier.fireTestStarted(description);
+		} catch (StoppedByUserException e) {
+			if (!stopRequested) {
+				logger.info("{}", "Stop requested, skipping the stories not started yet");
+				stopRequested = true;
+			}
+			notStarted.add(description);
+			cursor().outcome.markIncomplete();
+			fireTestIgnored(description);
+		}
+	}
+
+	private void fireTestFinished(Description description) {
+		if (!isNotStarted(description)) {
+			notifier.fireTestFinished(description);
+			if (description.isTest()) {
+				cursor().outcome.countPassed();
+			}
+		}
+	}
+
+	private void fireTestFailure(Failure failure) {
+		if (!isNotStarted(failure.getDescription())) {
+			notifier.fireTestFailure(failure);
+			cursor().outcome.countFailed();
+		}
+	}
+
+	private void fireTestIgnored(Description description) {
+		notifier.fireTestIgnored(description);
+		if (description.isTest()) {
+			cursor().outcome.countIgnored();
+		}
+	}
+
+	private void markFailed(Description test) {
+		int ordinal = descriptionKinds.ordinalOf(test);
+		synchronized (failedTests) {
+			if (ordinal < 0) {
+				failedUnregisteredTests.add(test);
+			} else {
+				failedTests.set(ordinal);
+			}
+		}
+	}
+
+	private boolean hasFailed(Description test) {
+		int ordinal = descriptionKinds.ordinalOf(test);
+		synchronized (failedTests) {
+			return ordinal < 0 ? failedUnregisteredTests.contains(test)
+					: failedTests.get(ordinal);
+		}
+	}
+
+	private void forgetFailures(Description description) {
+		int ordinal = descriptionKinds.ordinalOf(description);
+		synchronized (failedTests) {
+			if (ordinal < 0) {
+				failedUnregisteredTests.remove(description);
+			} else {
+				failedTests.clear(ordinal);
+			}
+		}
+		for (Description child : description.getChildren()) {
+			forgetFailures(child);
+		}
+	}
+
+	private boolean isNotStarted(Description description) {
+		return stopRequested && notStarted.contains(description);
+	}
+
+	/**
+	 * @return whether a run listener asked to stop the run, as noticed on
+	 *         reporting a test as started
+	 */
+	public boolean isStopRequested() {
+		return stopRequested;
+	}
+
+	/**
+	 * Reports the tests of a story that is not run, e.g. as the run was asked
+	 * to stop, as ignored.
+	 */
+	public void storySkipped(Story story) {
+		logger.info("Story skipped: {}", story.getName());
+		StoryCursor cursor = cursor();
+		cursor.outcome = new StoryOutcome(story.getName(),
+				story.getPath());
+		cursor.outcome.markIncomplete();
+		Description storyDescription = storyDescriptions.get(story.getName());
+		if (storyDescription != null) {
+			ignoreTests(storyDescription);
+		}
+		storyOutcomes.add(cursor.outcome);
+		finishRunIfDone();
+	}
+
+	/**
+	 * Reports the tests of a story that is not run, as it passed before and
+	 * none of its {@link AffectedStories inputs} changed since, as passed.
+	 */
+	public void storyUnchanged(Story story) {
+		logger.info("Story unchanged: {}", story.getName());
+		StoryCursor cursor = cursor();
+		cursor.outcome = new StoryOutcome(story.getName(),
+				story.getPath());
+		cursor.outcome.markIncomplete();
+		Description storyDescription = storyDescriptions.get(story.getName());
+		if (storyDescription != null) {
+			passTests(storyDescription);
+		}
+		storyOutcomes.add(cursor.outcome);
+		finishRunIfDone();
+	}
+
+	private void passTests(Description description) {
+		if (description.isTest()) {
+			fireTestStarted(description);
+			fireTestFinished(description);
+			testCounter.incrementAndGet();
+		}
+		for (Description child : description.getChildren()) {
+			passTests(child);
+		}
+	}
+
+	private void ignoreTests(Description description) {
+		if (description.isTest()) {
+			fireTestIgnored(description);
+			testCounter.incrementAndGet();
+		}
+		for (Description child : description.getChildren()) {
+			ignoreTests(child);
+		}
+	}
+
+	private void finishRunIfDone() {
+		if (testCounter.get() == totalTests
+				&& runFinished.compareAndSet(false, true)) {
+			Result result = new Result();
+			notifier.fireTestRunFinished(result);
+		}
 	}
 
 	public void beforeStory(Story story, boolean isGivenStory) {
+		StoryCursor cursor = cursor();
 		logger.info("Before Story: {} {}", story.getName(),
 				isGivenStory ? "(given story)" : "");
 		if (isGivenStory) {
-			notifier.fireTestStarted(currentStep);
-			givenStoryContext = true;
+			if (granularity == Granularity.STEP) {
+				fireTestStarted(cursor.currentStep);
+			}
+			if (!cursor.givenStoryContext) {
+				cursor.givenStoryStart = timings.start();
+				cursor.givenStoryName = story.getName();
+			}
+			cursor.givenStoryContext = true;
 
 		} else {
-			if (testCounter == 0) {
+			if (runStarted.compareAndSet(false, true)) {
 				notifier.fireTestRunStarted(rootDescription);
 			}
-			for (Description storyDescription : storyDescriptions) {
-				if (storyDescription.isSuite()
-						&& storyDescription.getDisplayName().equals(
-								story.getName())) {
-					currentStoryDescription = storyDescription;
-					notifier.fireTestStarted(storyDescription);
-
-					scenarioDescriptions = storyDescription.getChildren()
+			cursor.storyStart = timings.start();
+			cursor.storyName = story.getName();
+			cursor.outcome = new StoryOutcome(story.getName(),
+					story.getPath());
+			if (scenarioSelection != null
+					&& scenarioSelection.isPruned(story.getPath())) {
+				cursor.outcome.markIncomplete();
+			}
+			Description storyDescription = storyDescriptions.get(story
+					.getName());
+			if (storyDescription != null) {
+				cursor.currentStoryDescription = storyDescription;
+				cursor.stepSequences = lean ? StepSequences.ofStory(
+						storyDescription, descriptionKinds) : stepSequences;
+				fireTestStarted(storyDescription);
+				if (storyDescription.isSuite()) {
+					cursor.scenarioDescriptions = storyDescription.getChildren()
 							.iterator();
-					if (scenarioDescriptions.hasNext()) {
-						currentScenario = scenarioDescriptions.next();
+					if (cursor.scenarioDescriptions.hasNext()) {
+						cursor.currentScenario = cursor.scenarioDescriptions
+								.next();
 					}
-					currentStep = currentStoryDescription;
-				} else if (storyDescription.isTest()
-						&& storyDescription.getMethodName().equals(
-								story.getName())) {
-					// Story BeforeStories or After Stories
-					currentStoryDescription = storyDescription;
-					notifier.fireTestStarted(currentStoryDescription);
-					currentStep = currentStoryDescription;
 				}
+				cursor.currentStep = cursor.currentStoryDescription;
 			}
 		}
 
 	}
 
 	public void afterStory(boolean isGivenStory) {
-		logger.info("After Story: {} {}", currentStoryDescription
+		StoryCursor cursor = cursor();
+		logger.info("After Story: {} {}", cursor.currentStoryDescription
 				.getDisplayName(), isGivenStory ? "(given story)" : "");
 		if (isGivenStory) {
-			givenStoryContext = false;
-			notifier.fireTestFinished(currentStep);
-			prepareNextStep();
+			cursor.givenStoryContext = false;
+			timings.record(Level.STEP, cursor.givenStoryName,
+					cursor.givenStoryStart);
+			cursor.givenStoryStart = 0;
+			if (granularity == Granularity.STEP) {
+				fireTestFinished(cursor.currentStep);
+				prepareNextStep(cursor);
+			}
 		} else {
-			if (!failedSteps.contains(currentStoryDescription)) {
-				notifier.fireTestFinished(currentStoryDescription);
-				if (currentStoryDescription.isTest())
-					testCounter++;
+			timings.record(Level.STORY, cursor.storyName, cursor.storyStart);
+			if (granularity == Granularity.STORY
+					&& descriptionKinds.is(cursor.currentStoryDescription,
+							Kind.STORY)) {
+				finishTestOfSteps(cursor.currentStoryDescription);
+			} else if (!hasFailed(cursor.currentStoryDescription)) {
+				fireTestFinished(cursor.currentStoryDescription);
+				if (cursor.currentStoryDescription.isTest())
+					testCounter.incrementAndGet();
 			}
-
-			if (testCounter == totalTests) {
-				Result result = new Result();
-				notifier.fireTestRunFinished(result);
+			storyOutcomes.add(cursor.outcome);
+			if (lean) {
+				release(cursor);
 			}
+
+			finishRunIfDone();
+		}
+	}
+
+	private void release(StoryCursor cursor) {
+		StoryOutcome outcome = cursor.outcome;
+		logger.info("Story {}: {} passed, {} failed, {} ignored",
+				outcome.getName(), outcome.getPassed(), outcome.getFailed(),
+				outcome.getIgnored());
+		forgetFailures(cursor.currentStoryDescription);
+		descriptionKinds.release(cursor.currentStoryDescription);
+		storyDescriptions.remove(cursor.storyName);
+		cursor.stepSequences = null;
+		cursor.scenarioDescriptions = null;
+		cursor.currentScenario = null;
+		cursor.currentStep = cursor.currentStoryDescription;
+		cursor.stepDescriptions = null;
+		cursor.exampleDescriptions = null;
+		cursor.nextExample = null;
+	}
+
+	/**
+	 * @return the outcomes of the stories finished or skipped so far
+	 */
+	public List<StoryOutcome> getStoryOutcomes() {
+		synchronized (storyOutcomes) {
+			return new ArrayList<StoryOutcome>(storyOutcomes);
 		}
 	}
 
 	public void beforeScenario(String title) {
+		StoryCursor cursor = cursor();
 		logger.info("Before Scenario: {}", title);
-		if (!givenStoryContext) {
-			notifier.fireTestStarted(currentScenario);
-
-			ArrayList<Description> children = currentScenario.getChildren();
-			List<Description> examples = filterExamples(children);
-			if (!examples.isEmpty()) {
-				exampleDescriptions = examples.iterator();
-				if (exampleDescriptions.hasNext()) {
-					nextExample = exampleDescriptions.next();
-				}
+		if (!cursor.givenStoryContext) {
+			cursor.scenarioStart = timings.start();
+			cursor.scenarioTitle = title;
+			if (granularity == Granularity.STORY) {
+				// scenarios have no descriptions
+				return;
 			}
-			if (children.size() > examples.size()) {
-				// in case of given stories, these steps are actually stories,
-				// for which events
-				// will be fired in beforeStory(..., true)
-				ArrayList<Description> steps = new ArrayList<Description>(
-						currentScenario.getChildren());
-				steps.removeAll(examples);
-				stepDescriptions = getAllDescendants(steps).iterator();
-				if (stepDescriptions.hasNext()) {
-					currentStep = stepDescriptions.next();
-				}
+			fireTestStarted(cursor.currentScenario);
+			cursor.inScenario = true;
+
+			Description[] examples = cursor.stepSequences
+					.examplesOf(cursor.currentScenario);
+			if (examples.length > 0) {
+				cursor.exampleDescriptions = examples;
+				cursor.nextExampleIndex = 0;
+				prepareNextExample(cursor);
+			}
+			Description[] steps = cursor.stepSequences
+					.stepsOf(cursor.currentScenario);
+			if (steps.length > 0) {
+				startSteps(cursor, steps);
 			}
 		}
 	}
 
-	private List<Description> filterExamples(ArrayList<Description> children) {
-		for (int i = 0; i < children.size(); i++) {
-			Description child = (Description) children.get(i);
-			boolean isExample = child.getDisplayName().startsWith(
-					JUnitDescriptionGenerator.EXAMPLE_DESCRIPTION_PREFIX);
-			if (isExample) {
-				return children.subList(i, children.size());
-			}
-		}
-		return Collections.emptyList();
+	private void startSteps(StoryCursor cursor, Description[] steps) {
+		cursor.stepDescriptions = steps;
+		cursor.currentStep = steps[0];
+		cursor.nextStepIndex = 1;
 	}
 
-	private Collection<Description> getAllDescendants(
-			ArrayList<Description> steps) {
-		List<Description> descendants = new ArrayList<Description>();
-		for (Description child : steps) {
-			descendants.add(child);
-			descendants.addAll(getAllDescendants(child.getChildren()));
+	private void prepareNextExample(StoryCursor cursor) {
+		if (cursor.nextExampleIndex < cursor.exampleDescriptions.length) {
+			cursor.nextExample = cursor.exampleDescriptions[cursor
+					.nextExampleIndex++];
 		}
-		return descendants;
 	}
 
 	public void afterScenario() {
-		logger.info("After Scenario: {}", currentScenario.getDisplayName());
-		if (!givenStoryContext) {
-			notifier.fireTestFinished(currentScenario);
-			if (scenarioDescriptions.hasNext()) {
-				currentScenario = scenarioDescriptions.next();
+		StoryCursor cursor = cursor();
+		logger.info("After Scenario: {}", cursor.scenarioTitle);
+		if (!cursor.givenStoryContext) {
+			finishExampleTiming(cursor);
+			timings.record(Level.SCENARIO, cursor.scenarioTitle,
+					cursor.scenarioStart);
+			if (granularity == Granularity.STORY) {
+				return;
+			}
+			cursor.inScenario = false;
+			if (cursor.currentExample != null) {
+				finishCollapsedExample(cursor);
+			}
+			if (granularity == Granularity.SCENARIO) {
+				finishTestOfSteps(cursor.currentScenario);
+			} else {
+				fireTestFinished(cursor.currentScenario);
+			}
+			if (cursor.scenarioDescriptions.hasNext()) {
+				cursor.currentScenario = cursor.scenarioDescriptions.next();
 				logger.debug("--> updating current scenario to {}",
-						currentScenario.getDisplayName());
+						cursor.currentScenario.getDisplayName());
 			}
 		}
 	}
@@ -182,90 +468,202 @@ public class JUnitScenarioReporter implements StoryReporter {
 	}
 
 	public void example(Map<String, String> arg0) {
+		StoryCursor cursor = cursor();
 		logger.info("Example: {}", arg0);
+		if (!cursor.givenStoryContext) {
+			finishExampleTiming(cursor);
+			cursor.exampleStart = timings.start();
+			cursor.exampleName = cursor.scenarioTitle + " " + arg0;
+		}
+		if (granularity != Granularity.STEP) {
+			// example rows have no descriptions
+			return;
+		}
+		if (examplesPerDescription > 0) {
+			collapsedExample(cursor, arg0);
+			return;
+		}
+
+		Description[] steps = cursor.stepSequences
+				.stepsOf(cursor.nextExample);
+		if (steps.length > 0) {
+			startSteps(cursor, steps);
+		}
+
+		prepareNextExample(cursor);
+	}
+
+	private void finishExampleTiming(StoryCursor cursor) {
+		timings.record(Level.EXAMPLE, cursor.exampleName, cursor.exampleStart);
+		cursor.exampleStart = 0;
+	}
 
-		stepDescriptions = nextExample.getChildren().iterator();
-		if (stepDescriptions.hasNext()) {
-			currentStep = stepDescriptions.next();
+	private void collapsedExample(StoryCursor cursor, Map<String, String> row) {
+		if (cursor.currentExample != null
+				&& cursor.examplesInCurrentExample == examplesPerDescription) {
+			finishCollapsedExample(cursor);
+		}
+		if (cursor.currentExample == null) {
+			cursor.currentExample = cursor.nextExample;
+			cursor.examplesInCurrentExample = 0;
+			fireTestStarted(cursor.currentExample);
+			prepareNextExample(cursor);
+		}
+		cursor.examplesInCurrentExample++;
+		cursor.currentExampleRow = row;
+	}
+
+	/**
+	 * @return the test that step events are reported on, if steps have no
+	 *         descriptions of their own, or <code>null</code>
+	 */
+	private Description testOfSteps(StoryCursor cursor) {
+		if (cursor.currentExample != null) {
+			return cursor.currentExample;
+		}
+		if (granularity == Granularity.SCENARIO && cursor.inScenario) {
+			return cursor.currentScenario;
 		}
+		if (granularity == Granularity.STORY
+				&& descriptionKinds.is(cursor.currentStoryDescription,
+						Kind.STORY)) {
+			return cursor.currentStoryDescription;
+		}
+		return null;
+	}
 
-		if (exampleDescriptions.hasNext()) {
-			nextExample = exampleDescriptions.next();
+	private void failTestOfSteps(StoryCursor cursor, Description test,
+			String step, Throwable e) {
+		if (hasFailed(test)) {
+			// only the first failure of a test is reported
+			return;
+		}
+		if (test == cursor.currentExample && examplesPerDescription > 1) {
+			e = new RuntimeException("Step '" + step + "' failed for example "
+					+ cursor.currentExampleRow + ": " + e.getMessage(), e);
 		}
+		fireTestFailure(new Failure(test, e));
+		markFailed(test);
+	}
+
+	private void finishCollapsedExample(StoryCursor cursor) {
+		finishTestOfSteps(cursor.currentExample);
+		cursor.currentExample = null;
+	}
 
+	private void finishTestOfSteps(Description test) {
+		if (!hasFailed(test)) {
+			fireTestFinished(test);
+		}
+		testCounter.incrementAndGet();
 	}
 
 	public void afterExamples() {
+		StoryCursor cursor = cursor();
 		logger.info("{}", "afterExamples");
-
+		if (!cursor.givenStoryContext) {
+			finishExampleTiming(cursor);
+		}
+		if (cursor.currentExample != null) {
+			finishCollapsedExample(cursor);
+		}
 	}
 
 	public void beforeStep(String title) {
+		StoryCursor cursor = cursor();
 		logger.info("Before Step: {}", title);
-		if (!givenStoryContext) {
-			notifier.fireTestStarted(currentStep);
+		if (!cursor.givenStoryContext) {
+			cursor.stepStart = timings.start();
+		}
+		if (!cursor.givenStoryContext && testOfSteps(cursor) == null) {
+			fireTestStarted(cursor.currentStep);
 		}
 	}
 
 	public void failed(String step, Throwable e) {
+		StoryCursor cursor = cursor();
 		if (e instanceof UUIDExceptionWrapper) {
 			e = ((UUIDExceptionWrapper) e).getCause();
 		}
 		logger.info("Step Failed: {} (cause: {})", step, e.getMessage());
-		if (!givenStoryContext) {
-			notifier.fireTestFailure(new Failure(currentStep, e));
-			failedSteps.add(currentStep);
-			prepareNextStep();
+		finishStepTiming(cursor, step);
+		Description testOfSteps = testOfSteps(cursor);
+		if (testOfSteps != null) {
+			failTestOfSteps(cursor, testOfSteps, step, e);
+		} else if (!cursor.givenStoryContext) {
+			fireTestFailure(new Failure(cursor.currentStep, e));
+			markFailed(cursor.currentStep);
+			prepareNextStep(cursor);
 		}
 	}
 
 	public void successful(String step) {
+		StoryCursor cursor = cursor();
 		logger.info("Step Succesful: {}", step);
-		if (!givenStoryContext) {
-			notifier.fireTestFinished(currentStep);
+		finishStepTiming(cursor, step);
+		if (!cursor.givenStoryContext && testOfSteps(cursor) == null) {
+			fireTestFinished(cursor.currentStep);
 
-			prepareNextStep();
+			prepareNextStep(cursor);
 		}
 	}
 
-	private void prepareNextStep() {
-		if (currentStep.isTest())
-			testCounter++;
-		if (stepDescriptions != null && stepDescriptions.hasNext()) {
-			currentStep = stepDescriptions.next();
+	private void finishStepTiming(StoryCursor cursor, String step) {
+		if (!cursor.givenStoryContext) {
+			timings.record(Level.STEP, step, cursor.stepStart);
+			cursor.stepStart = 0;
+		}
+	}
+
+	private void prepareNextStep(StoryCursor cursor) {
+		if (cursor.currentStep.isTest())
+			testCounter.incrementAndGet();
+		if (cursor.stepDescriptions != null
+				&& cursor.nextStepIndex < cursor.stepDescriptions.length) {
+			cursor.currentStep = cursor.stepDescriptions[cursor
+					.nextStepIndex++];
 		}
 	}
 
 	public void pending(String arg0) {
+		StoryCursor cursor = cursor();
 		logger.info("Pending: {}", arg0);
-		if (!givenStoryContext) {
+		Description testOfSteps = testOfSteps(cursor);
+		if (testOfSteps != null) {
+			if (pendingStepStrategy instanceof FailingUponPendingStep) {
+				failTestOfSteps(cursor, testOfSteps, arg0,
+						new RuntimeException("Step is pending!"));
+			}
+		} else if (!cursor.givenStoryContext) {
 			if (pendingStepStrategy instanceof FailingUponPendingStep) {
-				notifier.fireTestStarted(currentStep);
-				notifier.fireTestFailure(new Failure(currentStep,
+				fireTestStarted(cursor.currentStep);
+				fireTestFailure(new Failure(cursor.currentStep,
 						new RuntimeException("Step is pending!")));
 			} else {
-				notifier.fireTestIgnored(currentStep);
+				fireTestIgnored(cursor.currentStep);
 			}
 
-			prepareNextStep();
+			prepareNextStep(cursor);
 		}
 	}
 
 	public void ignorable(String arg0) {
+		StoryCursor cursor = cursor();
 		logger.info("Ignorable: {}", arg0);
-		if (!givenStoryContext) {
-			notifier.fireTestIgnored(currentStep);
+		if (!cursor.givenStoryContext && testOfSteps(cursor) == null) {
+			fireTestIgnored(cursor.currentStep);
 
-			prepareNextStep();
+			prepareNextStep(cursor);
 		}
 	}
 
 	public void notPerformed(String arg0) {
+		StoryCursor cursor = cursor();
 		logger.info("Not performed: {}", arg0);
-		if (!givenStoryContext) {
-			notifier.fireTestIgnored(currentStep);
+		if (!cursor.givenStoryContext && testOfSteps(cursor) == null) {
+			fireTestIgnored(cursor.currentStep);
 
-			prepareNextStep();
+			prepareNextStep(cursor);
 		}
 	}
 
@@ -308,16 +706,202 @@ public class JUnitScenarioReporter implements StoryReporter {
 	}
 
 	public void storyCancelled(Story arg0, StoryDuration arg1) {
-		logger.info("Story cancelled: {} after {}", arg0, arg1);
-		System.out.println("JBehave2JunitReporter.storyCancelled()");
+		StoryCursor cursor = cursor();
+		logger.info("Story cancelled: {} after {} s", arg0.getName(),
+				arg1.getDurationInSecs());
+		RuntimeException e = new RuntimeException("Story cancelled after "
+				+ arg1.getDurationInSecs() + " s (timeout "
+				+ arg1.getTimeoutInSecs() + " s)");
+		Description testOfSteps = testOfSteps(cursor);
+		if (testOfSteps != null) {
+			failTestOfSteps(cursor, testOfSteps, arg0.getName(), e);
+		} else if (cursor.currentStoryDescription != null) {
+			fireTestFailure(new Failure(cursor.currentStoryDescription, e));
+		}
 	}
 
 	public void storyNotAllowed(Story arg0, String arg1) {
 		logger.info("Story not allowed: {}, {}", arg0, arg1);
 	}
 
+	/**
+	 * Tells the reporter down to which level {@link JUnitDescriptionGenerator}
+	 * created descriptions. Events below that level are reported on the
+	 * description of the enclosing scenario or story.
+	 */
+	public void useGranularity(Granularity granularity) {
+		this.granularity = granularity;
+	}
+
+	/**
+	 * Tells the reporter which scenarios a JUnit filter removed, so that the
+	 * outcomes of stories run without some of their scenarios are not taken
+	 * as complete.
+	 */
+	public void useScenarioSelection(ScenarioSelection scenarioSelection) {
+		this.scenarioSelection = scenarioSelection;
+	}
+
+	/**
+	 * Waits until all notifications were passed on to the run listeners, in
+	 * case they are passed on asynchronously, and prints the summary of the
+	 * {@link Timings}, if enabled, whatever the log level.
+	 */
+	public void close() {
+		if (notifier instanceof AsyncRunNotifier) {
+			((AsyncRunNotifier) notifier).close();
+		}
+		if (timings.isEnabled()) {
+			logger.report("{}", timings.summary());
+		}
+	}
+
+	/**
+	 * Tells the reporter whether stories run on several threads. JBehave then
+	 * delays the events of each story until it is done, so the
+	 * {@link Timings} would measure their replay rather than the steps; they
+	 * are switched off.
+	 */
+	public void useMultiThreading(boolean multiThreading) {
+		if (multiThreading && timings.isEnabled()) {
+			logger.info("{}",
+					"Timings are switched off, as stories run on several threads");
+			timings = new Timings(0);
+		}
+	}
+
+	public Timings getTimings() {
+		return timings;
+	}
+
+	/**
+	 * @return the notifier passing on the notifications asynchronously, with
+	 *         its back-pressure metrics, or <code>null</code> if they are
+	 *         passed on synchronously
+	 */
+	public AsyncRunNotifier getAsyncRunNotifier() {
+		return notifier instanceof AsyncRunNotifier ? (AsyncRunNotifier) notifier
+				: null;
+	}
+
 	public void usePendingStepStrategy(PendingStepStrategy strategy) {
 		this.pendingStepStrategy = strategy;
 	}
 
+	/**
+	 * Tells the reporter that example rows were described by
+	 * {@link JUnitDescriptionGenerator} with the given number of rows per
+	 * description and without step descriptions. Step events are then
+	 * reported on the description of the current row or page of rows.
+	 */
+	public void useExamplesPerDescription(int examplesPerDescription) {
+		this.examplesPerDescription = examplesPerDescription;
+	}
+
+	/**
+	 * The position of the reporter within the story running on the current
+	 * thread.
+	 */
+	private static class StoryCursor {
+		private Description currentStoryDescription;
+		private StepSequences stepSequences;
+		private StoryOutcome outcome = new StoryOutcome(null, null);
+		private Iterator<Description> scenarioDescriptions;
+		private Description currentScenario;
+		private Description currentStep;
+		private Description[] stepDescriptions;
+		private int nextStepIndex;
+		private Description[] exampleDescriptions;
+		private int nextExampleIndex;
+		private Description nextExample;
+		private Description currentExample;
+		private int examplesInCurrentExample;
+		private Map<String, String> currentExampleRow;
+		private boolean givenStoryContext;
+		private boolean inScenario;
+		private String storyName;
+		private long storyStart;
+		private String scenarioTitle;
+		private long scenarioStart;
+		private String exampleName;
+		private long exampleStart;
+		private long stepStart;
+		private String givenStoryName;
+		private long givenStoryStart;
+	}
+
+	/**
+	 * The number of tests of a story that passed, failed or were ignored.
+	 * Failures reported on the story or a scenario itself, e.g. of before
+	 * story steps or as the story timed out, count as failed tests too.
+	 * <p>
+	 * An outcome is complete if the story ran with all its scenarios: not if
+	 * a JUnit filter removed some of them, the run was stopped before all its
+	 * tests started, or the story was skipped.
+	 */
+	public static class StoryOutcome {
+		private final String name;
+		private final String path;
+		private int passed;
+		private int failed;
+		private int ignored;
+		private boolean complete;
+
+		StoryOutcome(String name, String path) {
+			this(name, path, 0, 0, 0, true);
+		}
+
+		StoryOutcome(String name, String path, int passed, int failed,
+				int ignored, boolean complete) {
+			this.name = name;
+			this.path = path;
+			this.passed = passed;
+			this.failed = failed;
+			this.ignored = ignored;
+			this.complete = complete;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public int getPassed() {
+			return passed;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		public int getIgnored() {
+			return ignored;
+		}
+
+		/**
+		 * @return whether the story ran with all its scenarios
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+
+		private void countPassed() {
+			passed++;
+		}
+
+		private void countFailed() {
+			failed++;
+		}
+
+		private void countIgnored() {
+			ignored++;
+		}
+
+		private void markIncomplete() {
+			complete = false;
+		}
+	}
 }
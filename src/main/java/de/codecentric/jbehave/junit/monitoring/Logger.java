@@ -3,6 +3,7 @@ package de.codecentric.jbehave.junit.monitoring;
 import static de.codecentric.jbehave.junit.monitoring.Logger.LogLevel.DEBUG;
 import static de.codecentric.jbehave.junit.monitoring.Logger.LogLevel.INFO;
 import static de.codecentric.jbehave.junit.monitoring.Logger.LogLevel.NONE;
+import static de.codecentric.jbehave.junit.monitoring.Logger.LogLevel.WARN;
 
 import java.io.PrintStream;
 
@@ -18,6 +19,22 @@ public class Logger {
 		printMessage(INFO, message, params);
 	}
 
+	/**
+	 * Logs a warning whatever the log level, as it points at a problem that
+	 * would otherwise go unnoticed.
+	 */
+	public void warn(String message, Object... params) {
+		printMessage(WARN, message, params);
+	}
+
+	/**
+	 * Prints a report asked for with a system property of its own, e.g. a
+	 * summary at the end of the run, whatever the log level.
+	 */
+	public void report(String message, Object... params) {
+		logStream.println(format(message, params));
+	}
+
 	public void debug(String message, Object... params) {
 		if (!isDebugEnabled()) {
 			return;
@@ -63,6 +80,10 @@ public class Logger {
 	}
 
 	private void printMessage(LogLevel level, String message, Object... params) {
+		logStream.println(level + ": " + format(message, params));
+	}
+
+	private String format(String message, Object... params) {
 		String format = message.replace("{}", "%s");
 		Object[] strings = new String[params.length];
 		for (int i = 0; i < params.length; i++) {
@@ -72,7 +93,7 @@ public class Logger {
 				strings[i] = params[i].toString();
 			}
 		}
-		logStream.println(level + ": " + String.format(format, strings));
+		return String.format(format, strings);
 	}
 
 	enum LogLevel {
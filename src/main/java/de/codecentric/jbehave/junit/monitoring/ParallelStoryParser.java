@@ -0,0 +1,131 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jbehave.core.configuration.Configuration;
+import org.jbehave.core.embedder.StoryRunner;
+import org.jbehave.core.model.Story;
+
+/**
+ * Loads and parses stories on a pool of threads. The number of threads is
+ * taken from the system property {@value #PROP_JJM_PARSER_THREADS} and
+ * defaults to one, i.e. parsing on the calling thread. Results are always
+ * returned in the order of the given story paths.
+ */
+public class ParallelStoryParser {
+	public static final String PROP_JJM_PARSER_THREADS = "jjm.parser.threads";
+
+	private final Configuration configuration;
+	private final StoryRunner storyRunner;
+	private final int threads;
+
+	public ParallelStoryParser(Configuration configuration,
+			StoryRunner storyRunner) {
+		this(configuration, storyRunner, configuredThreads());
+	}
+
+	public ParallelStoryParser(Configuration configuration,
+			StoryRunner storyRunner, int threads) {
+		this.configuration = configuration;
+		this.storyRunner = storyRunner;
+		this.threads = threads;
+	}
+
+	public List<Story> parse(List<String> storyPaths) {
+		return forEachPath(storyPaths, new PathTask<Story>() {
+			public Story run(int index, String storyPath) {
+				return storyRunner.storyOfPath(configuration, storyPath);
+			}
+		});
+	}
+
+	/**
+	 * Parses the given story texts. Stories without text are skipped and
+	 * result in <code>null</code>.
+	 */
+	public List<Story> parse(List<String> storyPaths,
+			final List<String> storiesAsText) {
+		return forEachPath(storyPaths, new PathTask<Story>() {
+			public Story run(int index, String storyPath) {
+				String storyAsText = storiesAsText.get(index);
+				return storyAsText == null ? null : parse(storyPath,
+						storyAsText);
+			}
+		});
+	}
+
+	public Story parse(String storyPath, String storyAsText) {
+		return storyRunner.storyOfText(configuration, storyAsText, storyPath);
+	}
+
+	public List<String> loadAsText(List<String> storyPaths) {
+		return forEachPath(storyPaths, new PathTask<String>() {
+			public String run(int index, String storyPath) {
+				return configuration.storyLoader().loadStoryAsText(storyPath);
+			}
+		});
+	}
+
+	private <T> List<T> forEachPath(List<String> storyPaths,
+			final PathTask<T> task) {
+		List<T> results = new ArrayList<T>();
+		if (threads <= 1 || storyPaths.size() <= 1) {
+			for (int i = 0; i < storyPaths.size(); i++) {
+				results.add(task.run(i, storyPaths.get(i)));
+			}
+			return results;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				threads, storyPaths.size()));
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for (int i = 0; i < storyPaths.size(); i++) {
+				final int index = i;
+				final String storyPath = storyPaths.get(i);
+				futures.add(executor.submit(new Callable<T>() {
+					public T call() {
+						return task.run(index, storyPath);
+					}
+				}));
+			}
+			for (Future<T> future : futures) {
+				results.add(get(future));
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private <T> T get(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private static int configuredThreads() {
+		return SystemProperties.intProperty(PROP_JJM_PARSER_THREADS, 1);
+	}
+
+	private interface PathTask<T> {
+		T run(int index, String storyPath);
+	}
+}
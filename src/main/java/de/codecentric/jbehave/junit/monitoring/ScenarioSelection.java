@@ -0,0 +1,104 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jbehave.core.embedder.MetaFilter;
+import org.jbehave.core.embedder.StoryControls;
+import org.jbehave.core.model.Scenario;
+import org.jbehave.core.model.Story;
+import org.junit.runner.Description;
+import org.junit.runner.manipulation.Filter;
+
+/**
+ * The scenarios left in the descriptions of stories after applying a JUnit
+ * {@link Filter}, so that only those are handed to the embedder. Scenarios are
+ * the smallest unit that can be run on its own: a scenario is kept if the
+ * filter selects any of its steps.
+ */
+public class ScenarioSelection {
+	private final StoryControls storyControls;
+	private final MetaFilter metaFilter;
+
+	// the scenario descriptions of each story before the first filter
+	private final Map<String, List<Description>> describedScenarios = new HashMap<String, List<Description>>();
+	private final Map<String, Description> storyDescriptions = new HashMap<String, Description>();
+
+	public ScenarioSelection(StoryControls storyControls, MetaFilter metaFilter) {
+		this.storyControls = storyControls;
+		this.metaFilter = metaFilter;
+	}
+
+	/**
+	 * Removes the scenarios not selected by the filter from the description
+	 * of the story.
+	 *
+	 * @return the descriptions of the scenarios removed
+	 */
+	public List<Description> prune(String storyPath,
+			Description storyDescription, Filter filter) {
+		List<Description> scenarios = storyDescription.getChildren();
+		List<Description> removed = new ArrayList<Description>();
+		for (Description scenario : scenarios) {
+			if (!filter.shouldRun(scenario)) {
+				removed.add(scenario);
+			}
+		}
+		if (removed.isEmpty()) {
+			return removed;
+		}
+		if (!describedScenarios.containsKey(storyPath)) {
+			describedScenarios.put(storyPath, new ArrayList<Description>(
+					scenarios));
+			storyDescriptions.put(storyPath, storyDescription);
+		}
+		scenarios.removeAll(removed);
+		return removed;
+	}
+
+	/**
+	 * @return whether scenarios were removed from the description of the
+	 *         story
+	 */
+	public boolean isPruned(String storyPath) {
+		return describedScenarios.containsKey(storyPath);
+	}
+
+	/**
+	 * @return the story without the scenarios removed from its description, or
+	 *         the story itself if none were removed
+	 */
+	public Story apply(Story story) {
+		List<Description> described = describedScenarios.get(story.getPath());
+		if (described == null) {
+			return story;
+		}
+		Map<Description, Boolean> kept = new IdentityHashMap<Description, Boolean>();
+		for (Description scenario : storyDescriptions.get(story.getPath())
+				.getChildren()) {
+			kept.put(scenario, Boolean.TRUE);
+		}
+		List<Scenario> allowed = JUnitDescriptionGenerator.allowedScenarios(
+				story, storyControls, metaFilter);
+		List<Scenario> scenarios = new ArrayList<Scenario>();
+		int index = 0;
+		for (Scenario scenario : story.getScenarios()) {
+			if (allowed.contains(scenario)) {
+				// the n-th allowed scenario has the n-th description
+				if (index < described.size()
+						&& !kept.containsKey(described.get(index++))) {
+					continue;
+				}
+			}
+			scenarios.add(scenario);
+		}
+		Story selected = new Story(story.getPath(), story.getDescription(),
+				story.getMeta(), story.getNarrative(), story.getGivenStories(),
+				scenarios);
+		selected.namedAs(story.getName());
+		return selected;
+	}
+}
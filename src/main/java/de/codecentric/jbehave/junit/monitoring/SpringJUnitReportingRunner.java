@@ -17,22 +17,38 @@ import org.jbehave.core.steps.InjectableStepsFactory;
 import org.jbehave.core.steps.NullStepMonitor;
 import org.jbehave.core.steps.StepMonitor;
 import org.junit.runner.Description;
+import org.junit.runner.manipulation.Filter;
+import org.junit.runner.manipulation.NoTestsRemainException;
+import org.junit.runner.manipulation.Sorter;
 import org.junit.runner.notification.RunNotifier;
 import org.junit.runners.model.Statement;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+
+import de.codecentric.jbehave.junit.monitoring.JUnitDescriptionGenerator.Granularity;
 
 public class SpringJUnitReportingRunner extends SpringJUnit4ClassRunner {
     private List<Description> storyDescriptions;
+    private final Map<Description, String> storyPathsByDescription = new IdentityHashMap<Description, String>();
+    private ScenarioSelection scenarioSelection;
     private Embedder configuredEmbedder;
     private List<String> storyPaths;
     private Configuration configuration;
     private int numberOfTestCases;
     private Description rootDescription;
+    private int examplesPerDescription;
+    private Granularity granularity;
+    private DescriptionKinds descriptionKinds;
+    private AffectedStories affectedStories;
     List<CandidateSteps> candidateSteps;
+    Logger logger = new Logger();
     private JBehaveTest testInstance;
 
     @SuppressWarnings("unchecked")
@@ -47,10 +63,15 @@ public class SpringJUnitReportingRunner extends SpringJUnit4ClassRunner {
         configuration = configuredEmbedder.configuration();
 
         StepMonitor originalStepMonitor = createCandidateStepsWithNoMonitor();
+        long start = System.currentTimeMillis();
         storyDescriptions = buildDescriptionFromStories();
-        createCandidateStepsWith(originalStepMonitor);
+        logger.info("Built descriptions of {} stories in {} ms",
+                storyPaths.size(), System.currentTimeMillis() - start);
+        useStepMonitor(originalStepMonitor);
 
         initRootDescription();
+        scenarioSelection = new ScenarioSelection(
+                configuration.storyControls(), configuredEmbedder.metaFilter());
     }
 
     @Override
@@ -63,21 +84,101 @@ public class SpringJUnitReportingRunner extends SpringJUnit4ClassRunner {
         return numberOfTestCases;
     }
 
+    /**
+     * Removes the stories and scenarios without any test selected by the
+     * filter, so that they are not run. BeforeStories and AfterStories are
+     * always kept.
+     */
+    @Override
+    public void filter(Filter filter) throws NoTestsRemainException {
+        List<Description> filteredDescriptions = new ArrayList<Description>();
+        boolean storiesRemain = false;
+        for (Description storyDescription : storyDescriptions) {
+            String storyPath = storyPathsByDescription.get(storyDescription);
+            if (storyPath == null) {
+                filteredDescriptions.add(storyDescription);
+            } else if (filter.shouldRun(storyDescription)) {
+                numberOfTestCases -= scenarioSelection.prune(storyPath,
+                        storyDescription, filter).size();
+                filteredDescriptions.add(storyDescription);
+                storiesRemain = true;
+            } else {
+                numberOfTestCases -= testCasesOf(storyDescription
+                        .getChildren().size());
+            }
+        }
+        if (!storiesRemain) {
+            throw new NoTestsRemainException();
+        }
+        useStoryDescriptions(filteredDescriptions);
+    }
+
+    /**
+     * Sorts the stories. Scenarios keep the order of their story, in which
+     * JBehave runs them.
+     */
+    @Override
+    public void sort(final Sorter sorter) {
+        List<Description> stories = new ArrayList<Description>(
+                storyDescriptions.subList(1, storyDescriptions.size() - 1));
+        Collections.sort(stories, new Comparator<Description>() {
+            public int compare(Description first, Description second) {
+                return sorter.compare(first, second);
+            }
+        });
+        stories.add(0, storyDescriptions.get(0));
+        stories.add(storyDescriptions.get(storyDescriptions.size() - 1));
+        useStoryDescriptions(stories);
+    }
+
+    private void useStoryDescriptions(List<Description> descriptions) {
+        storyDescriptions = descriptions;
+        List<String> paths = new ArrayList<String>();
+        for (Description storyDescription : storyDescriptions) {
+            String storyPath = storyPathsByDescription.get(storyDescription);
+            if (storyPath != null) {
+                paths.add(storyPath);
+            }
+        }
+        storyPaths = paths;
+        initRootDescription();
+    }
+
     @Override
     public void run(RunNotifier notifier) {
 
         JUnitScenarioReporter junitReporter = new JUnitScenarioReporter(
-                notifier, numberOfTestCases, rootDescription);
+                notifier, numberOfTestCases, rootDescription,
+                descriptionKinds);
         // tell the reporter how to handle pending steps
         junitReporter.usePendingStepStrategy(configuration.pendingStepStrategy());
 
+        junitReporter.useExamplesPerDescription(examplesPerDescription);
+        junitReporter.useGranularity(granularity);
+        junitReporter.useScenarioSelection(scenarioSelection);
+        junitReporter.useMultiThreading(configuredEmbedder.embedderControls()
+                .threads() > 1);
+
         addToStoryReporterFormats(junitReporter);
 
+        // skip the stories not started yet when asked to stop
+        StoryRunner storyRunner = configuredEmbedder.storyRunner();
+        StoryDurations storyDurations = StoryDurations
+                .forTestClass(testInstance.getClass());
+        StoppableStoryRunner stoppableStoryRunner = new StoppableStoryRunner(
+                storyRunner, junitReporter, scenarioSelection,
+                storyDurations, affectedStories);
+        configuredEmbedder.useStoryRunner(stoppableStoryRunner);
+        FailedStories failedStories = FailedStories
+                .forTestClass(testInstance.getClass());
+        final List<String> runOrder = failedStories.failedFirst(storyPaths);
+        storyDurations.predictMillis(runOrder, 1);
+        long start = System.currentTimeMillis();
         try {
             Statement statement = new Statement() {
                 @Override
                 public void evaluate() throws Throwable {
-                    configuredEmbedder.runStoriesAsPaths(storyPaths);
+                    configuredEmbedder.runStoriesAsPaths(runOrder);
                 }
             };
             statement = withBeforeClasses(statement);
@@ -86,14 +187,22 @@ public class SpringJUnitReportingRunner extends SpringJUnit4ClassRunner {
         } catch (Throwable e) {
             throw new RuntimeException(e);
         } finally {
+            stoppableStoryRunner.awaitCancelledStories();
+            configuredEmbedder.useStoryRunner(storyRunner);
+            storyDurations.save();
+            failedStories.update(storyPaths, junitReporter.getStoryOutcomes());
+            failedStories.save();
+            affectedStories.update(storyPaths, junitReporter.getStoryOutcomes());
+            affectedStories.save();
+            storyDurations.report(System.currentTimeMillis() - start);
             configuredEmbedder.generateCrossReference();
+            junitReporter.close();
         }
     }
 
-    private void createCandidateStepsWith(StepMonitor stepMonitor) {
-        // reset step monitor and recreate candidate steps
+    private void useStepMonitor(StepMonitor stepMonitor) {
+        // switch the step monitor of the already created candidate steps
         configuration.useStepMonitor(stepMonitor);
-        createCandidateSteps();
         for (CandidateSteps step : candidateSteps) {
             step.configuration().useStepMonitor(stepMonitor);
         }
@@ -101,7 +210,10 @@ public class SpringJUnitReportingRunner extends SpringJUnit4ClassRunner {
 
     private StepMonitor createCandidateStepsWithNoMonitor() {
         StepMonitor usedStepMonitor = configuration.stepMonitor();
-        createCandidateStepsWith(new NullStepMonitor());
+        StepMonitor nullStepMonitor = new NullStepMonitor();
+        configuration.useStepMonitor(nullStepMonitor);
+        createCandidateSteps();
+        useStepMonitor(nullStepMonitor);
         return usedStepMonitor;
     }
 
@@ -141,6 +253,12 @@ public class SpringJUnitReportingRunner extends SpringJUnit4ClassRunner {
     private List<Description> buildDescriptionFromStories() {
         JUnitDescriptionGenerator descriptionGenerator = new JUnitDescriptionGenerator(
                 candidateSteps, configuration, configuredEmbedder.metaFilter());
+        examplesPerDescription = descriptionGenerator.getExamplesPerDescription();
+        granularity = descriptionGenerator.getGranularity();
+        descriptionKinds = descriptionGenerator.getDescriptionKinds();
+        affectedStories = AffectedStories.forTestClass(
+                testInstance.getClass(), configuration,
+                descriptionGenerator, candidateSteps);
         StoryRunner storyRunner = new StoryRunner();
         List<Description> storyDescriptions = new ArrayList<Description>();
 
@@ -153,18 +271,56 @@ public class SpringJUnitReportingRunner extends SpringJUnit4ClassRunner {
 
     private void addStories(List<Description> storyDescriptions,
                             StoryRunner storyRunner, JUnitDescriptionGenerator gen) {
-        for (String storyPath : storyPaths) {
-            MetaFilter metaFilter = configuredEmbedder.metaFilter();
-            Story parseStory = storyRunner.storyOfPath(configuration, storyPath);
-            FilteredStory filteredStory = new FilteredStory(metaFilter, parseStory, configuration.storyControls());
-            if (filteredStory.allowed() || storyHasAllowedScenario(parseStory, metaFilter)) {
+        ParallelStoryParser parser = new ParallelStoryParser(configuration,
+                storyRunner);
+        storyPaths = StorySharding.fromSystemProperties().select(storyPaths,
+                parser);
+        StoryDescriptionCache cache = StoryDescriptionCache.forTestClass(
+                testInstance.getClass(), gen);
+        if (cache.isEnabled()) {
+            addStories(storyDescriptions, parser, cache, gen);
+            return;
+        }
+        List<Story> stories = parser.parse(storyPaths);
+        for (int i = 0; i < storyPaths.size(); i++) {
+            Story parseStory = stories.get(i);
+            if (isAllowed(parseStory)) {
                 Description descr = gen.createDescriptionFrom(parseStory);
+                affectedStories.describe(storyPaths.get(i), null, parseStory,
+                        gen.getMatchedStepsClasses());
                 storyDescriptions.add(descr);
-                numberOfTestCases += parseStory.getScenarios().size();
+                storyPathsByDescription.put(descr, storyPaths.get(i));
+                numberOfTestCases += testCasesOf(parseStory.getScenarios().size());
             }
         }
     }
 
+    private void addStories(List<Description> storyDescriptions,
+                            ParallelStoryParser parser, StoryDescriptionCache cache,
+                            JUnitDescriptionGenerator gen) {
+        List<CachedStoryDescription> cachedStories = cache.describe(storyPaths,
+                parser, gen, new StoryDescriptionCache.StoryFilter() {
+                    public boolean isAllowed(Story story) {
+                        return SpringJUnitReportingRunner.this.isAllowed(story);
+                    }
+                }, affectedStories);
+        for (int i = 0; i < storyPaths.size(); i++) {
+            CachedStoryDescription cached = cachedStories.get(i);
+            if (cached.hasDescription()) {
+                Description descr = cached.getDescription();
+                storyDescriptions.add(descr);
+                storyPathsByDescription.put(descr, storyPaths.get(i));
+                numberOfTestCases += testCasesOf(cached.getScenarios());
+            }
+        }
+    }
+
+    private boolean isAllowed(Story story) {
+        MetaFilter metaFilter = configuredEmbedder.metaFilter();
+        FilteredStory filteredStory = new FilteredStory(metaFilter, story, configuration.storyControls());
+        return filteredStory.allowed() || storyHasAllowedScenario(story, metaFilter);
+    }
+
     private boolean storyHasAllowedScenario(Story story, MetaFilter metaFilter) {
         StoryControls storyControls = configuration.storyControls();
         String storyMetaPrefix = storyControls.storyMetaPrefix();
@@ -181,6 +337,11 @@ public class SpringJUnitReportingRunner extends SpringJUnit4ClassRunner {
         return false;
     }
 
+    private int testCasesOf(int scenarios) {
+        // with story granularity, scenarios have no descriptions
+        return granularity == Granularity.STORY ? 1 : scenarios;
+    }
+
     private void addSuite(List<Description> storyDescriptions, String name) {
         storyDescriptions.add(Description.createTestDescription(Object.class,
                 name));
@@ -0,0 +1,123 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * A file the runner keeps from one run to the next, one per test class, in
+ * the directory given by a system property. Failing to read or to write it is
+ * logged and taken as if there was no previous run.
+ */
+class StateFile {
+	Logger logger = new Logger();
+
+	private final File file;
+	private final String name;
+
+	/**
+	 * @param name
+	 *            what the file holds, as logged
+	 */
+	StateFile(File file, String name) {
+		this.file = file;
+		this.name = name;
+	}
+
+	/**
+	 * @return the file of the test class in the directory configured by the
+	 *         system property, or <code>null</code> if none is configured
+	 */
+	static File forTestClass(Class<?> testClass, String property,
+			String defaultDirectory, String extension) {
+		File directory = SystemProperties.directoryProperty(property,
+				defaultDirectory);
+		if (directory == null) {
+			return null;
+		}
+		return new File(directory, testClass.getName() + extension);
+	}
+
+	/**
+	 * @return whether the file existed and was read
+	 */
+	boolean read(ContentReader reader) {
+		if (!file.isFile()) {
+			return false;
+		}
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				reader.readFrom(in);
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.info("Cannot read {} {}: {}", name, file, e.getMessage());
+		} catch (ClassNotFoundException e) {
+			logger.info("Cannot read {} {}: {}", name, file, e.getMessage());
+		}
+		return false;
+	}
+
+	void write(ContentWriter writer) {
+		File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			logger.info("Cannot create {} directory {}", name, directory);
+			return;
+		}
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					file));
+			try {
+				writer.writeTo(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			logger.info("Cannot write {} {}: {}", name, file, e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the properties in the file, none if it could not be read
+	 */
+	Properties readProperties() {
+		final Properties properties = new Properties();
+		read(new ContentReader() {
+			public void readFrom(InputStream in) throws IOException {
+				properties.load(in);
+			}
+		});
+		return properties;
+	}
+
+	void writeProperties(final Properties properties, final String comments) {
+		write(new ContentWriter() {
+			public void writeTo(OutputStream out) throws IOException {
+				properties.store(out, comments);
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+
+	interface ContentReader {
+		void readFrom(InputStream in) throws IOException,
+				ClassNotFoundException;
+	}
+
+	interface ContentWriter {
+		void writeTo(OutputStream out) throws IOException;
+	}
+}
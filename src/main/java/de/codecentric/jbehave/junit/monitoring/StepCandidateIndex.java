@@ -0,0 +1,165 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jbehave.core.configuration.Keywords;
+import org.jbehave.core.parsers.RegexPrefixCapturingPatternParser;
+import org.jbehave.core.parsers.StepPatternParser;
+import org.jbehave.core.steps.StepCandidate;
+import org.jbehave.core.steps.StepType;
+
+/**
+ * Narrows down the step candidates that could possibly match a given step, so
+ * that only those have to go through the (expensive) regex match of
+ * {@link StepCandidate#matches(String, String)}.
+ * <p>
+ * Candidates are bucketed by their starting word and, if the default
+ * {@link RegexPrefixCapturingPatternParser} is used, by the first literal word
+ * of their pattern. Candidates that cannot be indexed safely are always
+ * returned. The returned candidates keep the order in which they were given,
+ * so the first match is the same as when scanning the full list.
+ */
+public class StepCandidateIndex {
+
+	private final List<StepCandidate> candidates;
+	private final Keywords keywords;
+	private final String parameterPrefix;
+	private final Map<String, WordBucket> bucketsByStartingWord = new LinkedHashMap<String, WordBucket>();
+	private final List<Integer> alwaysChecked = new ArrayList<Integer>();
+
+	public StepCandidateIndex(List<StepCandidate> candidates,
+			Keywords keywords, StepPatternParser patternParser) {
+		this.candidates = candidates;
+		this.keywords = keywords;
+		this.parameterPrefix = patternParser instanceof RegexPrefixCapturingPatternParser ? ((RegexPrefixCapturingPatternParser) patternParser)
+				.getPrefix() : null;
+		for (int i = 0; i < candidates.size(); i++) {
+			index(i, candidates.get(i));
+		}
+	}
+
+	public List<StepCandidate> candidatesFor(String step) {
+		List<Integer> ordinals = new ArrayList<Integer>(alwaysChecked);
+		String andWord = startingWordFor(StepType.AND);
+		boolean isAndStep = andWord != null && startsWithWord(step, andWord);
+		for (Map.Entry<String, WordBucket> entry : bucketsByStartingWord
+				.entrySet()) {
+			String startingWord = entry.getKey();
+			if (startsWithWord(step, startingWord)) {
+				entry.getValue().collect(
+						step.substring(startingWord.length()), ordinals);
+			} else if (isAndStep) {
+				entry.getValue().collect(step.substring(andWord.length()),
+						ordinals);
+			}
+		}
+		Collections.sort(ordinals);
+		List<StepCandidate> result = new ArrayList<StepCandidate>(
+				ordinals.size());
+		int previous = -1;
+		for (Integer ordinal : ordinals) {
+			if (ordinal != previous) {
+				result.add(candidates.get(ordinal));
+				previous = ordinal;
+			}
+		}
+		return result;
+	}
+
+	private void index(int ordinal, StepCandidate candidate) {
+		StepType stepType = candidate.getStepType();
+		String startingWord = candidate.getStartingWord();
+		if (stepType == null || startingWord == null
+				|| !startingWord.equals(startingWordFor(stepType))) {
+			// candidate uses keywords we don't know about
+			alwaysChecked.add(ordinal);
+			return;
+		}
+		WordBucket bucket = bucketsByStartingWord.get(startingWord);
+		if (bucket == null) {
+			bucket = new WordBucket();
+			bucketsByStartingWord.put(startingWord, bucket);
+		}
+		bucket.add(ordinal, leadingLiteralWord(candidate.getPatternAsString()));
+	}
+
+	private String startingWordFor(StepType stepType) {
+		try {
+			return keywords.startingWordFor(stepType);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	private boolean startsWithWord(String step, String word) {
+		return keywords.stepStartsWithWord(step, word);
+	}
+
+	/**
+	 * @return the first word of the pattern, if it consists only of letters
+	 *         and digits that have to be matched literally, otherwise
+	 *         <code>null</code>
+	 */
+	private String leadingLiteralWord(String pattern) {
+		if (parameterPrefix == null || pattern == null) {
+			return null;
+		}
+		int end = wordEnd(pattern, 0);
+		if (end == 0 || pattern.startsWith(parameterPrefix, end)) {
+			return null;
+		}
+		return pattern.substring(0, end);
+	}
+
+	private static String leadingWordOfStep(String stepWithoutStartingWord) {
+		int start = 0;
+		while (start < stepWithoutStartingWord.length()
+				&& Character.isWhitespace(stepWithoutStartingWord
+						.charAt(start))) {
+			start++;
+		}
+		return stepWithoutStartingWord.substring(start,
+				wordEnd(stepWithoutStartingWord, start));
+	}
+
+	private static int wordEnd(String string, int start) {
+		int end = start;
+		while (end < string.length()
+				&& Character.isLetterOrDigit(string.charAt(end))) {
+			end++;
+		}
+		return end;
+	}
+
+	private static class WordBucket {
+		private final Map<String, List<Integer>> byLeadingWord = new HashMap<String, List<Integer>>();
+		private final List<Integer> unkeyed = new ArrayList<Integer>();
+
+		void add(int ordinal, String leadingWord) {
+			if (leadingWord == null) {
+				unkeyed.add(ordinal);
+				return;
+			}
+			List<Integer> ordinals = byLeadingWord.get(leadingWord);
+			if (ordinals == null) {
+				ordinals = new ArrayList<Integer>();
+				byLeadingWord.put(leadingWord, ordinals);
+			}
+			ordinals.add(ordinal);
+		}
+
+		void collect(String stepWithoutStartingWord, List<Integer> ordinals) {
+			ordinals.addAll(unkeyed);
+			List<Integer> keyed = byLeadingWord
+					.get(leadingWordOfStep(stepWithoutStartingWord));
+			if (keyed != null) {
+				ordinals.addAll(keyed);
+			}
+		}
+	}
+}
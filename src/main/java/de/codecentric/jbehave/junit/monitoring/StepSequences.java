@@ -0,0 +1,99 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.runner.Description;
+
+import de.codecentric.jbehave.junit.monitoring.DescriptionKinds.Kind;
+
+/**
+ * The steps of each scenario and example row in the order they are run,
+ * computed once for the whole description tree or for a single story.
+ * Descriptions are looked up by identity, as example rows or steps of
+ * different scenarios may have equal display names.
+ */
+public class StepSequences {
+	private static final Description[] NONE = new Description[0];
+
+	private final Map<Description, Description[]> steps = new IdentityHashMap<Description, Description[]>();
+	private final Map<Description, Description[]> examples = new IdentityHashMap<Description, Description[]>();
+
+	public StepSequences(Description rootDescription, DescriptionKinds kinds) {
+		for (Description storyDescription : rootDescription.getChildren()) {
+			addStory(storyDescription, kinds);
+		}
+	}
+
+	private StepSequences() {
+	}
+
+	public static StepSequences ofStory(Description storyDescription,
+			DescriptionKinds kinds) {
+		StepSequences sequences = new StepSequences();
+		sequences.addStory(storyDescription, kinds);
+		return sequences;
+	}
+
+	private void addStory(Description storyDescription, DescriptionKinds kinds) {
+		for (Description scenarioDescription : storyDescription.getChildren()) {
+			if (kinds.is(scenarioDescription, Kind.SCENARIO)) {
+				addScenario(scenarioDescription, kinds);
+			}
+		}
+	}
+
+	private void addScenario(Description scenarioDescription,
+			DescriptionKinds kinds) {
+		// in case of given stories, these steps are actually stories, for
+		// which events will be fired in beforeStory(..., true)
+		List<Description> scenarioSteps = new ArrayList<Description>();
+		List<Description> rows = new ArrayList<Description>();
+		for (Description child : scenarioDescription.getChildren()) {
+			if (kinds.is(child, Kind.EXAMPLE)) {
+				rows.add(child);
+				steps.put(child, flatten(child.getChildren()));
+			} else {
+				scenarioSteps.add(child);
+			}
+		}
+		if (!rows.isEmpty()) {
+			examples.put(scenarioDescription,
+					rows.toArray(new Description[rows.size()]));
+		}
+		steps.put(scenarioDescription, flatten(scenarioSteps));
+	}
+
+	private Description[] flatten(List<Description> descriptions) {
+		if (descriptions.isEmpty()) {
+			return NONE;
+		}
+		List<Description> flattened = new ArrayList<Description>();
+		addAllDescendants(descriptions, flattened);
+		return flattened.toArray(new Description[flattened.size()]);
+	}
+
+	private void addAllDescendants(List<Description> descriptions,
+			List<Description> flattened) {
+		for (Description description : descriptions) {
+			flattened.add(description);
+			addAllDescendants(description.getChildren(), flattened);
+		}
+	}
+
+	/**
+	 * @return the steps of a scenario without its example rows, or of a single
+	 *         example row, including the steps of composite steps
+	 */
+	public Description[] stepsOf(Description description) {
+		Description[] sequence = steps.get(description);
+		return sequence == null ? NONE : sequence;
+	}
+
+	public Description[] examplesOf(Description scenarioDescription) {
+		Description[] rows = examples.get(scenarioDescription);
+		return rows == null ? NONE : rows;
+	}
+}
@@ -0,0 +1,164 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.List;
+
+import org.jbehave.core.configuration.Configuration;
+import org.jbehave.core.embedder.MetaFilter;
+import org.jbehave.core.embedder.StoryRunner;
+import org.jbehave.core.model.Story;
+import org.jbehave.core.model.StoryDuration;
+import org.jbehave.core.reporters.StoryReporterBuilder;
+import org.jbehave.core.steps.CandidateSteps;
+import org.jbehave.core.steps.InjectableStepsFactory;
+import org.jbehave.core.steps.StepCollector.Stage;
+
+/**
+ * Runs stories with another {@link StoryRunner}, unless a run listener asked
+ * to stop the run. Stories not started by then are skipped and their tests
+ * reported as ignored, so that the run returns as soon as the running stories
+ * are done. As the embedder decides on each story when it starts, this also
+ * skips the stories already queued for other threads.
+ * <p>
+ * Stories are run without the scenarios removed by a JUnit filter, as kept by
+ * the {@link ScenarioSelection}. The time each story takes is recorded in the
+ * {@link StoryDurations}. Stories whose inputs did not change since they
+ * last passed are not run, as recorded by the {@link AffectedStories}.
+ * <p>
+ * With several threads, JBehave delays the events of each story until it is
+ * done, but never passes on those of the before stories steps. These are run
+ * on the calling thread before any story starts, so they are reported without
+ * delay.
+ * <p>
+ * JBehave does not wait for the stories it cancelled as they timed out: they
+ * report their cancellation at their next step, possibly after the run
+ * returned. {@link #awaitCancelledStories()} waits for them, so that their
+ * failures are part of the outcome of the run.
+ */
+public class StoppableStoryRunner extends StoryRunner {
+	static final long CANCELLED_STORIES_TIMEOUT_MILLIS = 5000;
+
+	Logger logger = new Logger();
+
+	private final StoryRunner delegate;
+	private final JUnitScenarioReporter reporter;
+	private final ScenarioSelection scenarioSelection;
+	private final StoryDurations storyDurations;
+	private final AffectedStories affectedStories;
+	private int runningStories;
+
+	public StoppableStoryRunner(StoryRunner delegate,
+			JUnitScenarioReporter reporter,
+			ScenarioSelection scenarioSelection,
+			StoryDurations storyDurations, AffectedStories affectedStories) {
+		this.delegate = delegate;
+		this.reporter = reporter;
+		this.scenarioSelection = scenarioSelection;
+		this.storyDurations = storyDurations;
+		this.affectedStories = affectedStories;
+	}
+
+	@Override
+	public void run(Configuration configuration,
+			InjectableStepsFactory stepsFactory, Story story,
+			MetaFilter filter, State beforeStories) throws Throwable {
+		if (reporter.isStopRequested()) {
+			reporter.storySkipped(story);
+			return;
+		}
+		if (affectedStories.isUnchanged(story.getPath())) {
+			if (affectedStories.isReportedAsPassed()) {
+				reporter.storyUnchanged(story);
+			} else {
+				reporter.storySkipped(story);
+			}
+			return;
+		}
+		long start = System.currentTimeMillis();
+		synchronized (this) {
+			runningStories++;
+		}
+		try {
+			delegate.run(configuration, stepsFactory,
+					scenarioSelection.apply(story), filter, beforeStories);
+		} finally {
+			storyDurations.record(story.getPath(),
+					System.currentTimeMillis() - start);
+			synchronized (this) {
+				runningStories--;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until the stories cancelled by JBehave are done, but at most
+	 * {@value #CANCELLED_STORIES_TIMEOUT_MILLIS} ms.
+	 */
+	public void awaitCancelledStories() {
+		try {
+			if (!awaitRunningStories(CANCELLED_STORIES_TIMEOUT_MILLIS)) {
+				logger.info("{}", "Cancelled stories are still running");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits until no story is running any more, but at most the given time.
+	 *
+	 * @return whether no story is running any more
+	 */
+	synchronized boolean awaitRunningStories(long timeoutMillis)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (runningStories > 0 && remaining > 0) {
+			wait(remaining);
+			remaining = end - System.currentTimeMillis();
+		}
+		return runningStories == 0;
+	}
+
+	@Override
+	public State runBeforeOrAfterStories(Configuration configuration,
+			List<CandidateSteps> candidateSteps, Stage stage) {
+		StoryReporterBuilder builder = configuration.storyReporterBuilder();
+		boolean multiThreading = builder.multiThreading();
+		if (stage == Stage.BEFORE && multiThreading) {
+			builder.withMultiThreading(false);
+		}
+		try {
+			return delegate.runBeforeOrAfterStories(configuration,
+					candidateSteps, stage);
+		} finally {
+			builder.withMultiThreading(multiThreading);
+		}
+	}
+
+	@Override
+	public Story storyOfPath(Configuration configuration, String storyPath) {
+		return delegate.storyOfPath(configuration, storyPath);
+	}
+
+	@Override
+	public Story storyOfText(Configuration configuration, String storyAsText,
+			String storyId) {
+		return delegate.storyOfText(configuration, storyAsText, storyId);
+	}
+
+	@Override
+	public void cancelStory(Story story, StoryDuration storyDuration) {
+		delegate.cancelStory(story, storyDuration);
+	}
+
+	@Override
+	public boolean failed(State state) {
+		return delegate.failed(state);
+	}
+
+	@Override
+	public Throwable failure(State state) {
+		return delegate.failure(state);
+	}
+}
@@ -0,0 +1,224 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jbehave.core.model.Story;
+import org.junit.runner.Description;
+
+/**
+ * Opt-in on-disk cache of generated story descriptions, so that unchanged
+ * stories neither have to be parsed nor matched against the step candidates
+ * again. Entries are keyed by story path and a hash of the story text; the
+ * whole cache is invalidated when the fingerprint of the step candidates and
+ * generator settings changes.
+ * <p>
+ * The cache is enabled with the system property
+ * {@value #PROP_JJM_DESCRIPTION_CACHE}, set either to <code>true</code> (to use
+ * {@value #DEFAULT_DIRECTORY}) or to the directory to use. There is one cache
+ * file per test class.
+ */
+public class StoryDescriptionCache {
+	public static final String PROP_JJM_DESCRIPTION_CACHE = "jjm.description.cache";
+	public static final String DEFAULT_DIRECTORY = "target/jjm-description-cache";
+
+	Logger logger = new Logger();
+
+	private final StateFile stateFile;
+	private final String fingerprint;
+	private Map<String, CachedStoryDescription> previousEntries;
+	private final Map<String, CachedStoryDescription> currentEntries = new HashMap<String, CachedStoryDescription>();
+
+	StoryDescriptionCache(File file, String fingerprint) {
+		stateFile = file == null ? null : new StateFile(file,
+				"description cache");
+		this.fingerprint = fingerprint;
+	}
+
+	public static StoryDescriptionCache forTestClass(Class<?> testClass,
+			JUnitDescriptionGenerator generator) {
+		File file = StateFile.forTestClass(testClass,
+				PROP_JJM_DESCRIPTION_CACHE, DEFAULT_DIRECTORY, ".descriptions");
+		if (file == null) {
+			return new StoryDescriptionCache(null, null);
+		}
+		return new StoryDescriptionCache(file, generator.fingerprint());
+	}
+
+	public boolean isEnabled() {
+		return stateFile != null;
+	}
+
+	/**
+	 * @return the cached description of the story, or <code>null</code> if
+	 *         there is none for the given story text
+	 */
+	public CachedStoryDescription get(String storyPath, String contentHash) {
+		if (!isEnabled()) {
+			return null;
+		}
+		CachedStoryDescription cached = previousEntries().get(storyPath);
+		if (cached == null || !cached.getContentHash().equals(contentHash)) {
+			return null;
+		}
+		currentEntries.put(storyPath, cached);
+		return cached;
+	}
+
+	public void put(String storyPath, CachedStoryDescription description) {
+		if (isEnabled()) {
+			currentEntries.put(storyPath, description);
+		}
+	}
+
+	/**
+	 * Writes all entries that were used or added since this cache was
+	 * created. Entries of stories that are no longer part of the run are
+	 * dropped.
+	 */
+	public void save() {
+		if (!isEnabled()) {
+			return;
+		}
+		stateFile.write(new StateFile.ContentWriter() {
+			public void writeTo(OutputStream out) throws IOException {
+				ObjectOutputStream objects = new ObjectOutputStream(out);
+				objects.writeObject(fingerprint);
+				objects.writeObject(new HashMap<String, CachedStoryDescription>(
+						currentEntries));
+				objects.flush();
+			}
+		});
+	}
+
+	/**
+	 * Describes the stories, restoring the descriptions of unchanged stories
+	 * from the cache and generating and caching those of the others, and
+	 * saves the cache. The inputs of each story are passed on to the
+	 * {@link AffectedStories}.
+	 *
+	 * @param storyFilter
+	 *            the filter stories have to pass to be described, or
+	 *            <code>null</code> to describe all stories
+	 * @return the cached description of each story, in the order of the story
+	 *         paths, without a description if the story did not pass the
+	 *         filter
+	 */
+	public List<CachedStoryDescription> describe(List<String> storyPaths,
+			ParallelStoryParser parser, JUnitDescriptionGenerator gen,
+			StoryFilter storyFilter, AffectedStories affectedStories) {
+		List<String> storiesAsText = parser.loadAsText(storyPaths);
+		List<String> contentHashes = new ArrayList<String>();
+		List<CachedStoryDescription> cachedStories = new ArrayList<CachedStoryDescription>();
+		List<String> uncachedStoriesAsText = new ArrayList<String>();
+		for (int i = 0; i < storyPaths.size(); i++) {
+			String contentHash = hash(storiesAsText.get(i));
+			CachedStoryDescription cached = get(storyPaths.get(i), contentHash);
+			contentHashes.add(contentHash);
+			cachedStories.add(cached);
+			uncachedStoriesAsText.add(cached == null ? storiesAsText.get(i)
+					: null);
+		}
+		List<Story> stories = parser.parse(storyPaths, uncachedStoriesAsText);
+		for (int i = 0; i < storyPaths.size(); i++) {
+			CachedStoryDescription cached = cachedStories.get(i);
+			if (cached != null && !cached.hasDescription()) {
+				// story did not pass the filter
+				continue;
+			}
+			Description descr = cached == null ? null : gen
+					.restoreDescriptionFrom(cached);
+			if (descr != null) {
+				affectedStories.describe(storyPaths.get(i),
+						storiesAsText.get(i), null, null);
+				continue;
+			}
+			Story parseStory = stories.get(i) != null ? stories.get(i)
+					: parser.parse(storyPaths.get(i), storiesAsText.get(i));
+			if (storyFilter == null || storyFilter.isAllowed(parseStory)) {
+				cached = gen.createCachedDescriptionFrom(parseStory,
+						contentHashes.get(i));
+				affectedStories.describe(storyPaths.get(i),
+						storiesAsText.get(i), parseStory,
+						gen.getMatchedStepsClasses());
+			} else {
+				cached = new CachedStoryDescription(contentHashes.get(i),
+						null, null, 0, parseStory.getScenarios().size(),
+						Collections.<String> emptyList(),
+						Collections.<String> emptyList());
+			}
+			put(storyPaths.get(i), cached);
+			cachedStories.set(i, cached);
+		}
+		save();
+		return cachedStories;
+	}
+
+	/**
+	 * Decides which stories are described.
+	 */
+	public interface StoryFilter {
+		boolean isAllowed(Story story);
+	}
+
+	public static String hash(String text) {
+		try {
+			return hash(text.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String hash(byte[] bytes) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder hash = new StringBuilder();
+			for (byte b : digest.digest(bytes)) {
+				hash.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hash.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Map<String, CachedStoryDescription> previousEntries() {
+		if (previousEntries == null) {
+			previousEntries = load();
+		}
+		return previousEntries;
+	}
+
+	private Map<String, CachedStoryDescription> load() {
+		final Map<String, CachedStoryDescription> entries = new HashMap<String, CachedStoryDescription>();
+		stateFile.read(new StateFile.ContentReader() {
+			@SuppressWarnings("unchecked")
+			public void readFrom(InputStream in) throws IOException,
+					ClassNotFoundException {
+				ObjectInputStream objects = new ObjectInputStream(in);
+				if (fingerprint.equals(objects.readObject())) {
+					entries.putAll((Map<String, CachedStoryDescription>) objects
+							.readObject());
+				} else {
+					logger.info("Description cache {} is outdated", stateFile);
+				}
+			}
+		});
+		return entries;
+	}
+
+
+}
@@ -0,0 +1,200 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opt-in record of how long each story took, kept on disk from one run to the
+ * next. With several story threads, the stories are started longest first, so
+ * that no long story is left to run alone at the end while the other threads
+ * are idle. As each thread takes the next story once it is done, this assigns
+ * every story to the thread that is free first. Stories not run before are
+ * expected to take the mean of the known durations.
+ * <p>
+ * Enabled with the system property {@value #PROP_JJM_STORY_DURATIONS}, set
+ * either to <code>true</code> (to use {@value #DEFAULT_DIRECTORY}) or to the
+ * directory to use. There is one file per test class, listing the duration in
+ * milliseconds by story path. At the end of the run, the predicted and the
+ * actual time to run all stories are printed whatever the log level.
+ */
+public class StoryDurations {
+	public static final String PROP_JJM_STORY_DURATIONS = "jjm.story.durations";
+	public static final String DEFAULT_DIRECTORY = "target/jjm-story-durations";
+
+	Logger logger = new Logger();
+
+	private final StateFile stateFile;
+	private Map<String, Long> previousDurations;
+	private final Map<String, Long> currentDurations = new ConcurrentHashMap<String, Long>();
+	private long predictedMillis = -1;
+
+	StoryDurations(File file) {
+		stateFile = file == null ? null : new StateFile(file,
+				"story durations");
+	}
+
+	public static StoryDurations forTestClass(Class<?> testClass) {
+		return new StoryDurations(StateFile.forTestClass(testClass,
+				PROP_JJM_STORY_DURATIONS, DEFAULT_DIRECTORY, ".durations"));
+	}
+
+	public boolean isEnabled() {
+		return stateFile != null;
+	}
+
+	/**
+	 * @return the duration of the story in the previous run, or -1 if unknown
+	 */
+	public long previousMillis(String storyPath) {
+		if (!isEnabled()) {
+			return -1;
+		}
+		Long millis = previousDurations().get(storyPath);
+		return millis == null ? -1 : millis;
+	}
+
+	public void record(String storyPath, long millis) {
+		if (isEnabled() && storyPath != null) {
+			currentDurations.put(storyPath, millis);
+		}
+	}
+
+	/**
+	 * @return the story paths, longest first by their previous durations, and
+	 *         in their original order if they took equally long
+	 */
+	public List<String> longestFirst(List<String> storyPaths) {
+		final Map<String, Long> estimates = estimates(storyPaths);
+		List<String> ordered = new ArrayList<String>(storyPaths);
+		Collections.sort(ordered, new Comparator<String>() {
+			public int compare(String first, String second) {
+				long firstMillis = estimates.get(first);
+				long secondMillis = estimates.get(second);
+				return firstMillis > secondMillis ? -1
+						: firstMillis == secondMillis ? 0 : 1;
+			}
+		});
+		return ordered;
+	}
+
+	/**
+	 * Predicts how long the stories take on the given number of threads, each
+	 * thread taking the next story in the given order once it is done.
+	 *
+	 * @return the predicted time in milliseconds, or -1 if no duration is
+	 *         known
+	 */
+	public long predictMillis(List<String> storyPaths, int threads) {
+		if (!hasPrevious(storyPaths)) {
+			predictedMillis = -1;
+			return predictedMillis;
+		}
+		Map<String, Long> estimates = estimates(storyPaths);
+		long[] busy = new long[Math.max(1, threads)];
+		for (String storyPath : storyPaths) {
+			int free = 0;
+			for (int thread = 1; thread < busy.length; thread++) {
+				if (busy[thread] < busy[free]) {
+					free = thread;
+				}
+			}
+			busy[free] += estimates.get(storyPath);
+		}
+		long max = 0;
+		for (long millis : busy) {
+			max = Math.max(max, millis);
+		}
+		predictedMillis = max;
+		return predictedMillis;
+	}
+
+	private boolean hasPrevious(List<String> storyPaths) {
+		for (String storyPath : storyPaths) {
+			if (previousMillis(storyPath) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Map<String, Long> estimates(List<String> storyPaths) {
+		long known = 0;
+		long total = 0;
+		for (String storyPath : storyPaths) {
+			long millis = previousMillis(storyPath);
+			if (millis >= 0) {
+				known++;
+				total += millis;
+			}
+		}
+		long mean = known == 0 ? 0 : total / known;
+		Map<String, Long> estimates = new HashMap<String, Long>();
+		for (String storyPath : storyPaths) {
+			long millis = previousMillis(storyPath);
+			estimates.put(storyPath, millis >= 0 ? millis : mean);
+		}
+		return estimates;
+	}
+
+	/**
+	 * Prints the predicted and the actual time to run all stories.
+	 */
+	public void report(long actualMillis) {
+		if (!isEnabled()) {
+			return;
+		}
+		logger.report("Story durations: predicted {}, actual {} ms",
+				predictedMillis < 0 ? "unknown" : predictedMillis + " ms",
+				actualMillis);
+	}
+
+	/**
+	 * Writes the durations recorded in this run, keeping the previous ones of
+	 * stories that were not run, e.g. as they belong to another shard.
+	 */
+	public void save() {
+		if (!isEnabled()) {
+			return;
+		}
+		Properties properties = new Properties();
+		for (Map.Entry<String, Long> entry : previousDurations().entrySet()) {
+			properties.setProperty(entry.getKey(),
+					String.valueOf(entry.getValue()));
+		}
+		for (Map.Entry<String, Long> entry : currentDurations.entrySet()) {
+			properties.setProperty(entry.getKey(),
+					String.valueOf(entry.getValue()));
+		}
+		stateFile.writeProperties(properties, "story durations in ms");
+	}
+
+	private Map<String, Long> previousDurations() {
+		if (previousDurations == null) {
+			previousDurations = load();
+		}
+		return previousDurations;
+	}
+
+	private Map<String, Long> load() {
+		Map<String, Long> durations = new HashMap<String, Long>();
+		Properties properties = stateFile.readProperties();
+		for (String storyPath : properties.stringPropertyNames()) {
+			try {
+				durations.put(storyPath,
+						Long.parseLong(properties.getProperty(storyPath)));
+			} catch (NumberFormatException e) {
+				logger.info("Ignoring duration of {}: {}", storyPath,
+						properties.getProperty(storyPath));
+			}
+		}
+		return durations;
+	}
+
+}
@@ -0,0 +1,147 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits the story paths of a test class into shards, so that several JVMs
+ * each describe and run only their own part of the stories. Configured by the
+ * system properties {@value #PROP_JJM_SHARD_COUNT} and
+ * {@value #PROP_JJM_SHARD_INDEX}, counting from 1.
+ * <p>
+ * Every shard needs a run of its own with a fixed index, e.g. one surefire
+ * execution or one CI job per shard. Surefire forks do not work as shards:
+ * each test class runs in a single fork, so only that fork's shard would run.
+ * <p>
+ * The split only depends on the story paths and, with
+ * {@value #PROP_JJM_SHARD_BY} set to <code>size</code>, on the size of the
+ * story texts, so every JVM computes the same shards. By default stories are
+ * assigned by a hash of their path. By size, the largest stories are assigned
+ * first, each to the shard with the least text so far.
+ */
+public class StorySharding {
+	public static final String PROP_JJM_SHARD_COUNT = "jjm.shard.count";
+	public static final String PROP_JJM_SHARD_INDEX = "jjm.shard.index";
+	public static final String PROP_JJM_SHARD_BY = "jjm.shard.by";
+
+	public enum Strategy {
+		HASH, SIZE
+	}
+
+	Logger logger = new Logger();
+
+	private final int count;
+	private final int index;
+	private final Strategy strategy;
+
+	/**
+	 * @param index
+	 *            the shard to select, from 1 to count
+	 */
+	public StorySharding(int count, int index, Strategy strategy) {
+		this.count = count;
+		this.index = index;
+		this.strategy = strategy;
+	}
+
+	public static StorySharding fromSystemProperties() {
+		String by = SystemProperties.stringProperty(PROP_JJM_SHARD_BY,
+				Strategy.HASH.name());
+		Strategy strategy = Strategy.HASH;
+		if (Strategy.SIZE.name().equalsIgnoreCase(by)) {
+			strategy = Strategy.SIZE;
+		}
+		return new StorySharding(SystemProperties.intProperty(
+				PROP_JJM_SHARD_COUNT, 1), SystemProperties.intProperty(
+				PROP_JJM_SHARD_INDEX, 1), strategy);
+	}
+
+	public boolean isEnabled() {
+		return count > 1 && index >= 1 && index <= count;
+	}
+
+	/**
+	 * @return the story paths of the configured shard, in their original
+	 *         order, or all story paths if sharding is not enabled
+	 */
+	public List<String> select(List<String> storyPaths,
+			ParallelStoryParser parser) {
+		if (!isEnabled()) {
+			if (count > 1) {
+				logger.info("Ignoring shard {} of {}", index, count);
+			}
+			return storyPaths;
+		}
+		int[] shards;
+		if (strategy == Strategy.SIZE) {
+			shards = shardsBySize(storyPaths, sizesOf(parser
+					.loadAsText(storyPaths)));
+		} else {
+			shards = shardsByHash(storyPaths);
+		}
+		List<String> selected = new ArrayList<String>();
+		for (int i = 0; i < storyPaths.size(); i++) {
+			if (shards[i] == index) {
+				selected.add(storyPaths.get(i));
+			}
+		}
+		logger.info("Running shard {} of {} by {}: {} of {} stories", index,
+				count, strategy.name().toLowerCase(Locale.ENGLISH),
+				selected.size(), storyPaths.size());
+		if (selected.isEmpty()) {
+			logger.warn("Shard {} of {} has none of the {} stories", index,
+					count, storyPaths.size());
+		}
+		return selected;
+	}
+
+	private static long[] sizesOf(List<String> storiesAsText) {
+		long[] sizes = new long[storiesAsText.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			String storyAsText = storiesAsText.get(i);
+			sizes[i] = storyAsText == null ? 0 : storyAsText.length();
+		}
+		return sizes;
+	}
+
+	int[] shardsByHash(List<String> storyPaths) {
+		int[] shards = new int[storyPaths.size()];
+		for (int i = 0; i < shards.length; i++) {
+			// String.hashCode() is specified, so it is the same in every JVM
+			shards[i] = (storyPaths.get(i).hashCode() & Integer.MAX_VALUE)
+					% count + 1;
+		}
+		return shards;
+	}
+
+	int[] shardsBySize(final List<String> storyPaths, final long[] sizes) {
+		Integer[] largestFirst = new Integer[storyPaths.size()];
+		for (int i = 0; i < largestFirst.length; i++) {
+			largestFirst[i] = i;
+		}
+		Arrays.sort(largestFirst, new Comparator<Integer>() {
+			public int compare(Integer first, Integer second) {
+				if (sizes[first] != sizes[second]) {
+					return sizes[first] > sizes[second] ? -1 : 1;
+				}
+				return storyPaths.get(first).compareTo(storyPaths.get(second));
+			}
+		});
+		long[] load = new long[count];
+		int[] shards = new int[storyPaths.size()];
+		for (Integer story : largestFirst) {
+			int lightest = 0;
+			for (int shard = 1; shard < count; shard++) {
+				if (load[shard] < load[lightest]) {
+					lightest = shard;
+				}
+			}
+			load[lightest] += sizes[story];
+			shards[story] = lightest + 1;
+		}
+		return shards;
+	}
+}
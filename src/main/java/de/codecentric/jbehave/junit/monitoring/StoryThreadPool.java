@@ -0,0 +1,74 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that stories run on, as configured by the system property
+ * {@value #PROP_JJM_STORY_THREADS} or the {@link StoryThreads} annotation of
+ * the test class: a number, or <code>"cores"</code> for as many threads as
+ * there are processors.
+ */
+public class StoryThreadPool {
+	public static final String PROP_JJM_STORY_THREADS = "jjm.story.threads";
+	public static final String CORES = "cores";
+
+	private static Logger logger = new Logger();
+
+	private StoryThreadPool() {
+	}
+
+	/**
+	 * @return the number of threads configured for the test class, or 0 if
+	 *         none is configured
+	 */
+	public static int configuredThreads(Class<?> testClass) {
+		String threads = SystemProperties.stringProperty(
+				PROP_JJM_STORY_THREADS, null);
+		if (threads == null) {
+			StoryThreads annotation = testClass
+					.getAnnotation(StoryThreads.class);
+			if (annotation == null) {
+				return 0;
+			}
+			threads = annotation.value().trim();
+		}
+		return parseThreads(threads);
+	}
+
+	static int parseThreads(String threads) {
+		if (CORES.equalsIgnoreCase(threads)) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+		try {
+			int number = Integer.parseInt(threads);
+			if (number > 0) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// logged below
+		}
+		logger.info("Ignoring story threads '{}', expected a number or '{}'",
+				threads, CORES);
+		return 0;
+	}
+
+	/**
+	 * @return a pool of daemon threads named <code>jjm-story-N</code>, to be
+	 *         shut down by the caller
+	 */
+	public static ExecutorService newPool(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger number = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "jjm-story-"
+						+ number.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
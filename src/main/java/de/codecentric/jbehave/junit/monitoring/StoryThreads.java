@@ -0,0 +1,22 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Tells {@link JUnitReportingRunner} on how many threads to run the stories of
+ * the annotated class: a number, or <code>"cores"</code> for as many threads
+ * as there are processors. The system property
+ * {@value StoryThreadPool#PROP_JJM_STORY_THREADS} takes precedence.
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface StoryThreads {
+	String value();
+}
@@ -0,0 +1,57 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.io.File;
+
+/**
+ * Reads the <code>jjm.*</code> system properties that configure the runners.
+ * Missing, empty and invalid values result in the given default.
+ */
+public class SystemProperties {
+
+	private SystemProperties() {
+	}
+
+	public static String stringProperty(String name, String defaultValue) {
+		String configuredValue = System.getProperty(name);
+		if (configuredValue == null || "".equals(configuredValue.trim())) {
+			return defaultValue;
+		}
+		return configuredValue.trim();
+	}
+
+	public static int intProperty(String name, int defaultValue) {
+		String configuredValue = stringProperty(name, null);
+		if (configuredValue == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(configuredValue);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public static boolean booleanProperty(String name, boolean defaultValue) {
+		String configuredValue = stringProperty(name, null);
+		if (configuredValue == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(configuredValue);
+	}
+
+	/**
+	 * @return the configured directory, the default directory if the property
+	 *         is <code>true</code>, or <code>null</code> if it is missing,
+	 *         empty or <code>false</code>
+	 */
+	public static File directoryProperty(String name, String defaultDirectory) {
+		String configuredValue = stringProperty(name, null);
+		if (configuredValue == null || "false".equalsIgnoreCase(configuredValue)) {
+			return null;
+		}
+		if ("true".equalsIgnoreCase(configuredValue)) {
+			return new File(defaultDirectory);
+		}
+		return new File(configuredValue);
+	}
+}
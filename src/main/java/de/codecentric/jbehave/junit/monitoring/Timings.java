@@ -0,0 +1,167 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects the durations of stories, scenarios, example rows and steps, as
+ * measured with {@link System#nanoTime()}, and sums them up at the end of the
+ * run. Enabled with the system property {@value #PROP_JJM_TIMINGS} set to the
+ * number of slowest entries to list per level. The summary is printed to the
+ * log stream whatever the log level, so that the property alone is enough to
+ * get it. Stories running on several threads are not timed, as their events
+ * are only passed on once each story is done.
+ */
+public class Timings {
+	public static final String PROP_JJM_TIMINGS = "jjm.timings";
+
+	public enum Level {
+		STORY, SCENARIO, EXAMPLE, STEP
+	}
+
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+
+	private final int slowest;
+	private final Map<Level, List<Timing>> timings = new EnumMap<Level, List<Timing>>(
+			Level.class);
+
+	public Timings(int slowest) {
+		this.slowest = slowest;
+		for (Level level : Level.values()) {
+			timings.put(level, new ArrayList<Timing>());
+		}
+	}
+
+	public static Timings fromSystemProperties() {
+		return new Timings(Math.max(0,
+				SystemProperties.intProperty(PROP_JJM_TIMINGS, 0)));
+	}
+
+	public boolean isEnabled() {
+		return slowest > 0;
+	}
+
+	/**
+	 * Records the time since the given start, if enabled and started.
+	 *
+	 * @param startNanos
+	 *            the value of {@link System#nanoTime()} at the start, or 0 if
+	 *            not started
+	 */
+	public void record(Level level, String name, long startNanos) {
+		if (!isEnabled() || startNanos == 0) {
+			return;
+		}
+		long nanos = System.nanoTime() - startNanos;
+		List<Timing> levelTimings = timings.get(level);
+		synchronized (levelTimings) {
+			levelTimings.add(new Timing(name, nanos));
+		}
+	}
+
+	/**
+	 * @return the current time to be passed to
+	 *         {@link #record(Level, String, long)} later, or 0 if disabled
+	 */
+	public long start() {
+		return isEnabled() ? System.nanoTime() : 0;
+	}
+
+	public List<Timing> getTimings(Level level) {
+		List<Timing> levelTimings = timings.get(level);
+		synchronized (levelTimings) {
+			return new ArrayList<Timing>(levelTimings);
+		}
+	}
+
+	/**
+	 * @return count, total, percentiles and maximum per level, followed by the
+	 *         slowest entries of each level
+	 */
+	public String summary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format(Locale.ENGLISH,
+				"%-10s %8s %10s %10s %10s %10s %10s%n", "Timings", "count",
+				"total ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+		Map<Level, List<Timing>> sortedTimings = new EnumMap<Level, List<Timing>>(
+				Level.class);
+		for (Level level : Level.values()) {
+			List<Timing> sorted = getTimings(level);
+			Collections.sort(sorted, SLOWEST_FIRST);
+			sortedTimings.put(level, sorted);
+			if (sorted.isEmpty()) {
+				continue;
+			}
+			long total = 0;
+			for (Timing timing : sorted) {
+				total += timing.getNanos();
+			}
+			summary.append(String.format(Locale.ENGLISH, "%-10s %8d %10s",
+					level.name().toLowerCase(Locale.ENGLISH), sorted.size(),
+					millis(total)));
+			for (double percentile : PERCENTILES) {
+				summary.append(String.format(Locale.ENGLISH, " %10s",
+						millis(percentile(sorted, percentile))));
+			}
+			summary.append(String.format(Locale.ENGLISH, " %10s%n",
+					millis(sorted.get(0).getNanos())));
+		}
+		for (Level level : Level.values()) {
+			List<Timing> sorted = sortedTimings.get(level);
+			if (sorted.isEmpty()) {
+				continue;
+			}
+			summary.append(String.format(Locale.ENGLISH, "Slowest %s:%n",
+					level.name().toLowerCase(Locale.ENGLISH)));
+			for (Timing timing : sorted.subList(0,
+					Math.min(slowest, sorted.size()))) {
+				summary.append(String.format(Locale.ENGLISH, "%10s ms  %s%n",
+						millis(timing.getNanos()), timing.getName()));
+			}
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Nearest-rank percentile of durations sorted slowest first.
+	 */
+	static long percentile(List<Timing> slowestFirst, double percentile) {
+		int rank = (int) Math.ceil(percentile / 100 * slowestFirst.size());
+		int index = slowestFirst.size() - Math.max(rank, 1);
+		return slowestFirst.get(index).getNanos();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ENGLISH, "%.1f", nanos / 1000000.0);
+	}
+
+	private static final Comparator<Timing> SLOWEST_FIRST = new Comparator<Timing>() {
+		public int compare(Timing first, Timing second) {
+			return first.getNanos() < second.getNanos() ? 1 : first
+					.getNanos() == second.getNanos() ? 0 : -1;
+		}
+	};
+
+	public static class Timing {
+		private final String name;
+		private final long nanos;
+
+		Timing(String name, long nanos) {
+			this.name = name;
+			this.nanos = nanos;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jbehave.core.configuration.Configuration;
+import org.jbehave.core.configuration.MostUsefulConfiguration;
+import org.jbehave.core.io.StoryLoader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.codecentric.jbehave.junit.monitoring.JUnitScenarioReporter.StoryOutcome;
+import de.codecentric.jbehave.junit.monitoring.step.ExampleSteps;
+
+public class AffectedStoriesTest {
+
+	private final Map<String, String> storiesAsText = new HashMap<String, String>();
+	private final Configuration configuration = new MostUsefulConfiguration()
+			.useStoryLoader(new StoryLoader() {
+				public String loadStoryAsText(String storyPath) {
+					return storiesAsText.get(storyPath);
+				}
+			});
+	private final Set<Class<?>> matched = new HashSet<Class<?>>(
+			Arrays.<Class<?>> asList(ExampleSteps.class));
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), "test.inputs");
+		storiesAsText.put("a.story", "Scenario: a\nGiven a step");
+		storiesAsText.put("b.story",
+				"GivenStories: given.story\nScenario: b\nGiven a step");
+		storiesAsText.put("given.story", "Scenario: given\nGiven a step");
+	}
+
+	@Test
+	public void shouldTakeStoryAsUnchangedOncePassed() {
+		runAndPass("a.story");
+
+		assertThat(describe().isUnchanged("a.story"), is(true));
+	}
+
+	@Test
+	public void shouldTakeStoryAsChangedIfItsTextChanged() {
+		runAndPass("a.story");
+		storiesAsText.put("a.story", "Scenario: a\nGiven another step");
+
+		assertThat(describe().isUnchanged("a.story"), is(false));
+	}
+
+	@Test
+	public void shouldTakeStoryAsChangedIfItsGivenStoryChanged() {
+		runAndPass("b.story");
+		assertThat(describe().isUnchanged("b.story"), is(true));
+		storiesAsText.put("given.story", "Scenario: given\nGiven another step");
+
+		assertThat(describe().isUnchanged("b.story"), is(false));
+	}
+
+	@Test
+	public void shouldTakeStoryAsChangedIfTheStepCandidatesChanged() {
+		runAndPass("a.story");
+
+		AffectedStories next = new AffectedStories(file, configuration,
+				"other fingerprint", matched, new HashSet<Class<?>>(), false);
+		next.describe("a.story", null, null, matched);
+
+		assertThat(next.isUnchanged("a.story"), is(false));
+	}
+
+	@Test
+	public void shouldRunStoryAgainOnceFailed() {
+		runAndPass("a.story");
+		AffectedStories next = describe();
+		next.update(Arrays.asList("a.story"),
+				Arrays.asList(outcome("a.story", 0, 1)));
+		next.save();
+
+		assertThat(describe().isUnchanged("a.story"), is(false));
+	}
+
+	@Test
+	public void shouldNotTakeStoryAsUnchangedOncePartlyPassed() {
+		AffectedStories affectedStories = describe();
+		affectedStories.update(Arrays.asList("a.story"), Collections
+				.singletonList(new StoryOutcome("a.story", "a.story", 1, 0, 0,
+						false)));
+		affectedStories.save();
+
+		assertThat(describe().isUnchanged("a.story"), is(false));
+	}
+
+	private void runAndPass(String storyPath) {
+		AffectedStories affectedStories = describe();
+		assertThat(affectedStories.isUnchanged(storyPath), is(false));
+		affectedStories.update(Arrays.asList(storyPath),
+				Collections.singletonList(outcome(storyPath, 1, 0)));
+		affectedStories.save();
+	}
+
+	private AffectedStories describe() {
+		AffectedStories affectedStories = new AffectedStories(file,
+				configuration, "fingerprint", matched,
+				new HashSet<Class<?>>(), false);
+		for (String storyPath : Arrays.asList("a.story", "b.story")) {
+			affectedStories.describe(storyPath, null, null, matched);
+		}
+		return affectedStories;
+	}
+
+	private StoryOutcome outcome(String storyPath, int passed, int failed) {
+		return new StoryOutcome(storyPath, storyPath, passed, failed, 0, true);
+	}
+}
@@ -0,0 +1,146 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+
+public class AsyncRunNotifierTest {
+
+	private final List<String> events = Collections
+			.synchronizedList(new ArrayList<String>());
+	private final CountDownLatch dispatching = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@Test
+	public void shouldPassOnNotificationsInOrderBeforeRunFinishedReturns()
+			throws InterruptedException {
+		RunNotifier delegate = new RunNotifier();
+		delegate.addListener(new RecordingListener());
+		AsyncRunNotifier notifier = new AsyncRunNotifier(delegate, 1);
+		Description first = Description.createSuiteDescription("first");
+		Description second = Description.createSuiteDescription("second");
+
+		notifier.fireTestRunStarted(first);
+		// the dispatcher waits in the listener, so the next one fills the queue
+		dispatching.await();
+		notifier.fireTestStarted(first);
+		releaseWhenWaiting(Thread.currentThread());
+		notifier.fireTestFinished(first);
+		notifier.fireTestStarted(second);
+		notifier.fireTestIgnored(second);
+		notifier.fireTestRunFinished(new Result());
+
+		assertThat(events, is(Arrays.asList("runStarted first",
+				"started first", "finished first", "started second",
+				"ignored second", "runFinished")));
+		assertThat(notifier.getNotifications(), is(6L));
+		assertThat(notifier.getBlockedPuts(), is(greaterThan(0L)));
+		notifier.close();
+	}
+
+	@Test
+	public void shouldPassOnNotificationsSynchronouslyAfterClosing() {
+		RunNotifier delegate = new RunNotifier();
+		delegate.addListener(new RecordingListener());
+		release.countDown();
+		AsyncRunNotifier notifier = new AsyncRunNotifier(delegate, 10);
+		notifier.close();
+
+		notifier.fireTestStarted(Description.createSuiteDescription("late"));
+
+		assertThat(events, is(Arrays.asList("started late")));
+	}
+
+	@Test
+	public void shouldWarnAboutFailingListenerAndReportMetrics() {
+		RunNotifier delegate = new RunNotifier() {
+			@Override
+			public void fireTestStarted(Description description) {
+				throw new IllegalStateException("listener failed");
+			}
+		};
+		AsyncRunNotifier notifier = new AsyncRunNotifier(delegate, 10);
+		notifier.logger = mock(Logger.class);
+
+		notifier.fireTestStarted(Description.createSuiteDescription("failing"));
+		notifier.close();
+
+		verify(notifier.logger).warn(eq("Notification failed: {}"),
+				isA(IllegalStateException.class));
+		verify(notifier.logger).report(startsWith("Passed on {} notifications"),
+				(Object[]) anyVararg());
+	}
+
+	/**
+	 * Releases the listener once the given thread waits, i.e. for the full
+	 * queue.
+	 */
+	private void releaseWhenWaiting(final Thread reportingThread) {
+		new Thread(new Runnable() {
+			public void run() {
+				while (reportingThread.getState() != Thread.State.WAITING) {
+					Thread.yield();
+				}
+				release.countDown();
+			}
+		}).start();
+	}
+
+	/**
+	 * Records notifications, waiting in the first one until released.
+	 */
+	private class RecordingListener extends RunListener {
+		@Override
+		public void testRunStarted(Description description) {
+			record("runStarted " + description.getDisplayName());
+		}
+
+		@Override
+		public void testRunFinished(Result result) {
+			record("runFinished");
+		}
+
+		@Override
+		public void testStarted(Description description) {
+			record("started " + description.getDisplayName());
+		}
+
+		@Override
+		public void testFinished(Description description) {
+			record("finished " + description.getDisplayName());
+		}
+
+		@Override
+		public void testIgnored(Description description) {
+			record("ignored " + description.getDisplayName());
+		}
+
+		private void record(String event) {
+			dispatching.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			events.add(event);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class DescriptionTextUniquefierTest {
+
+	@Test
+	public void shouldAppendZeroWidthSpacesToDuplicates() {
+		DescriptionTextUniquefier uniq = new DescriptionTextUniquefier(false);
+		assertThat(uniq.getUniqueDescription("step"), is("step"));
+		assertThat(uniq.getUniqueDescription("step"), is("step\u200B"));
+		assertThat(uniq.getUniqueDescription("other"), is("other"));
+		assertThat(uniq.getUniqueDescription("step"), is("step\u200B\u200B"));
+	}
+
+	@Test
+	public void shouldSkipNamesTakenByOtherTexts() {
+		DescriptionTextUniquefier uniq = new DescriptionTextUniquefier(false);
+		uniq.getUniqueDescription("step\u200B");
+		assertThat(uniq.getUniqueDescription("step"), is("step"));
+		assertThat(uniq.getUniqueDescription("step"), is("step\u200B\u200B"));
+	}
+
+	@Test
+	public void shouldAppendCounterToDuplicatesIfConfigured() {
+		DescriptionTextUniquefier uniq = new DescriptionTextUniquefier(true);
+		assertThat(uniq.getUniqueDescription("step"), is("step"));
+		assertThat(uniq.getUniqueDescription("step"), is("step [2]"));
+		assertThat(uniq.getUniqueDescription("step"), is("step [3]"));
+	}
+
+	@Test
+	public void shouldOnlyReserveNamesItWouldGenerate() {
+		DescriptionTextUniquefier uniq = new DescriptionTextUniquefier(false);
+		uniq.getUniqueDescription("step");
+
+		assertThat(uniq.reserve(Arrays.asList("step"), Arrays.asList("step")),
+				is(false));
+		assertThat(uniq.reserve(Arrays.asList("step"),
+				Arrays.asList("step\u200B")), is(true));
+		assertThat(uniq.reserve(Collections.<String> emptyList(),
+				Collections.<String> emptyList()), is(true));
+		assertThat(uniq.getUniqueDescription("step"), is("step\u200B\u200B"));
+	}
+}
@@ -0,0 +1,77 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExampleRowLabelerTest {
+
+	private Map<String, String> row;
+
+	@Before
+	public void setUp() {
+		row = new TreeMap<String, String>();
+		row.put("age", "42");
+		row.put("city", "Solingen");
+		row.put("name", "Bob");
+	}
+
+	@Test
+	public void shouldUseWholeRowByDefault() {
+		ExampleRowLabeler labeler = ExampleRowLabeler.parse(null);
+		assertThat(labeler.isRowAsLabel(), is(true));
+		assertThat(labeler.labelFor(0, row), is(row.toString()));
+	}
+
+	@Test
+	public void shouldUseRowIndex() {
+		ExampleRowLabeler labeler = ExampleRowLabeler.parse("index");
+		assertThat(labeler.isRowAsLabel(), is(false));
+		assertThat(labeler.labelFor(4, row), is("5"));
+	}
+
+	@Test
+	public void shouldUseSelectedColumns() {
+		ExampleRowLabeler labeler = ExampleRowLabeler
+				.parse("columns:name, age");
+		assertThat(labeler.labelFor(0, row), is("{name=Bob, age=42}"));
+	}
+
+	@Test
+	public void shouldCapLongRows() {
+		ExampleRowLabeler labeler = ExampleRowLabeler.parse("maxlength:10");
+		assertThat(labeler.labelFor(0, row), is("{age=42, c... #"
+				+ Integer.toHexString(row.hashCode())));
+	}
+
+	@Test
+	public void shouldCapInsideHugeValues() {
+		StringBuilder huge = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			huge.append('x');
+		}
+		row.put("age", huge.toString());
+		ExampleRowLabeler labeler = ExampleRowLabeler.parse("maxlength:10");
+		assertThat(labeler.labelFor(0, row), is("{age=xxxxx... #"
+				+ Integer.toHexString(row.hashCode())));
+	}
+
+	@Test
+	public void shouldNotCapShortRows() {
+		ExampleRowLabeler labeler = ExampleRowLabeler.parse("maxlength:100");
+		assertThat(labeler.labelFor(0, row), is(row.toString()));
+	}
+
+	@Test
+	public void shouldFallBackToWholeRowForInvalidConfiguration() {
+		ExampleRowLabeler labeler = ExampleRowLabeler.parse("maxlength:x");
+		assertThat(labeler.labelFor(0, row), startsWith("{age=42"));
+		assertThat(labeler.isRowAsLabel(), is(true));
+	}
+}
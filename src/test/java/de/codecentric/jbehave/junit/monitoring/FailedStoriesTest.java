@@ -0,0 +1,97 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.codecentric.jbehave.junit.monitoring.JUnitScenarioReporter.StoryOutcome;
+
+public class FailedStoriesTest {
+
+	private final List<String> storyPaths = Arrays.asList("a.story",
+			"b.story", "c.story", "d.story");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), "test.failed");
+	}
+
+	@Test
+	public void shouldRunStoriesFailedBeforeFirst() {
+		FailedStories failedStories = new FailedStories(file);
+		failedStories.update(storyPaths, Arrays.asList(
+				outcome("a.story", 1, 0), outcome("b.story", 0, 1),
+				outcome("c.story", 2, 0), outcome("d.story", 1, 1)));
+		failedStories.save();
+
+		FailedStories next = new FailedStories(file);
+
+		assertThat(next.failedFirst(storyPaths), is(Arrays.asList("b.story",
+				"d.story", "a.story", "c.story")));
+	}
+
+	@Test
+	public void shouldForgetFailuresOfStoriesPassedSince() {
+		FailedStories failedStories = new FailedStories(file);
+		failedStories.update(storyPaths, Arrays.asList(
+				outcome("a.story", 0, 1), outcome("b.story", 0, 1)));
+		failedStories.save();
+		FailedStories next = new FailedStories(file);
+		next.update(storyPaths, Arrays.asList(outcome("a.story", 1, 0),
+				outcome("b.story", 0, 0)));
+		next.save();
+
+		FailedStories last = new FailedStories(file);
+
+		assertThat(last.hasFailed("a.story"), is(false));
+		assertThat(last.hasFailed("b.story"), is(true));
+	}
+
+	@Test
+	public void shouldKeepStoriesFailedOncePartlyPassed() {
+		FailedStories failedStories = new FailedStories(file);
+		failedStories.update(storyPaths,
+				Arrays.asList(outcome("a.story", 0, 1)));
+		failedStories.update(storyPaths, Arrays.asList(new StoryOutcome(
+				"a.story", "a.story", 1, 0, 0, false)));
+
+		assertThat(failedStories.hasFailed("a.story"), is(true));
+	}
+
+	@Test
+	public void shouldIgnoreOutcomesOfStoriesNotInRun() {
+		FailedStories failedStories = new FailedStories(file);
+		failedStories.update(storyPaths,
+				Arrays.asList(outcome("BeforeStories", 0, 1)));
+
+		assertThat(failedStories.hasFailed("BeforeStories"), is(false));
+	}
+
+	@Test
+	public void shouldKeepOrderIfDisabled() {
+		FailedStories failedStories = FailedStories
+				.forTestClass(FailedStoriesTest.class);
+		failedStories.update(storyPaths,
+				Arrays.asList(outcome("c.story", 0, 1)));
+
+		assertThat(failedStories.isEnabled(), is(false));
+		assertThat(failedStories.failedFirst(storyPaths), is(storyPaths));
+	}
+
+	private StoryOutcome outcome(String storyPath, int passed, int failed) {
+		return new StoryOutcome(storyPath, storyPath, passed, failed, 0, true);
+	}
+}
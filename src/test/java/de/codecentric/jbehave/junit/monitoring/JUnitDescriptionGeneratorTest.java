@@ -17,6 +17,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -26,6 +27,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
+import org.apache.commons.io.IOUtils;
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Matcher;
 import org.hamcrest.Matchers;
@@ -47,6 +49,8 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import de.codecentric.jbehave.junit.monitoring.DescriptionKinds.Kind;
+
 @RunWith(MockitoJUnitRunner.class)
 public class JUnitDescriptionGeneratorTest {
 
@@ -234,6 +238,31 @@ public class JUnitDescriptionGeneratorTest {
 		assertThat(generator.getTestCases(), is(1));
 	}
 
+	@Test
+	public void shouldRegisterKindsOfDescriptions() {
+		when(givenStories.getPaths()).thenReturn(
+				Arrays.asList("/some/path/to/GivenStory.story"));
+		addStepToScenario();
+		addExamplesTableToScenario(1);
+		addScenarioToStory(scenario);
+
+		generateStoryDescription();
+
+		DescriptionKinds kinds = generator.getDescriptionKinds();
+		Description scenarioDescription = firstChild(description);
+		Description exampleDescription = scenarioDescription.getChildren()
+				.get(1);
+		assertThat(kinds.kindOf(description), is(Kind.STORY));
+		assertThat(kinds.kindOf(scenarioDescription), is(Kind.SCENARIO));
+		assertThat(kinds.kindOf(firstChild(scenarioDescription)),
+				is(Kind.GIVEN_STORY));
+		assertThat(kinds.kindOf(exampleDescription), is(Kind.EXAMPLE));
+		assertThat(kinds.kindOf(firstChild(exampleDescription)),
+				is(Kind.STEP));
+		assertThat(kinds.ordinalOf(description), is(0));
+		assertThat(kinds.size(), is(5));
+	}
+
 	@Test
 	public void shouldGenerateDescriptionForExampleTablesOnScenario() {
 		addStepToScenario();
@@ -253,6 +282,112 @@ public class JUnitDescriptionGeneratorTest {
 
 	}
 
+	@Test
+	public void shouldGenerateCollapsedDescriptionsForPagesOfExampleRows() {
+		addStepToScenario();
+		addExamplesTableToScenario(5);
+		System.setProperty(
+				JUnitDescriptionGenerator.PROP_JJM_EXAMPLES_COLLAPSE, "2");
+		try {
+			generator = new JUnitDescriptionGenerator(
+					Arrays.asList(new CandidateSteps[] { steps }),
+					configuration, metaFilter);
+		} finally {
+			System.clearProperty(JUnitDescriptionGenerator.PROP_JJM_EXAMPLES_COLLAPSE);
+		}
+
+		generateScenarioDescription();
+
+		assertThat(description.getChildren().size(), is(3));
+		assertThat(firstChild(description).getDisplayName(),
+				is("Example: rows 1-2"));
+		assertThat(description.getChildren().get(2).getDisplayName(),
+				is("Example: rows 5-5"));
+		for (Description exampleDescription : description.getChildren()) {
+			assertThat(exampleDescription.isTest(), is(true));
+		}
+		assertThat(generator.getTestCases(), is(3));
+	}
+
+	@Test
+	public void shouldGenerateSafeAndUniqueCollapsedDescriptionsForSingleRows() {
+		addStepToScenario();
+		addExamplesTableToScenario(3).put("key1", "value(1)");
+		System.setProperty(
+				JUnitDescriptionGenerator.PROP_JJM_EXAMPLES_COLLAPSE, "1");
+		try {
+			generator = new JUnitDescriptionGenerator(
+					Arrays.asList(new CandidateSteps[] { steps }),
+					configuration, metaFilter);
+		} finally {
+			System.clearProperty(JUnitDescriptionGenerator.PROP_JJM_EXAMPLES_COLLAPSE);
+		}
+
+		generateScenarioDescription();
+
+		assertThat(description.getChildren().size(), is(3));
+		Set<String> displayNames = new HashSet<String>();
+		for (Description exampleDescription : description.getChildren()) {
+			assertThat(exampleDescription.isTest(), is(true));
+			assertThat(exampleDescription.getDisplayName(),
+					not(containsString("(")));
+			displayNames.add(exampleDescription.getDisplayName());
+		}
+		assertThat(displayNames.size(), is(3));
+	}
+
+	@Test
+	public void shouldGenerateScenariosAsTestsWithScenarioGranularity() {
+		addStepToScenario();
+		addExamplesTableToScenario(3);
+		addScenarioToStory(scenario, scenario);
+		generator = generatorWithGranularity("scenario");
+
+		generateStoryDescription();
+
+		assertThat(description.getChildren().size(), is(2));
+		for (Description scenarioDescription : description.getChildren()) {
+			assertThat(scenarioDescription.isTest(), is(true));
+		}
+		assertThat(generator.getTestCases(), is(2));
+	}
+
+	@Test
+	public void shouldGenerateStoryAsTestWithStoryGranularity() {
+		addStepToScenario();
+		addScenarioToStory(scenario, scenario);
+		generator = generatorWithGranularity("story");
+
+		generateStoryDescription();
+
+		assertThat(description.isTest(), is(true));
+		assertThat(generator.getTestCases(), is(1));
+	}
+
+	private JUnitDescriptionGenerator generatorWithGranularity(
+			String granularity) {
+		System.setProperty(JUnitDescriptionGenerator.PROP_JJM_GRANULARITY,
+				granularity);
+		try {
+			return new JUnitDescriptionGenerator(
+					Arrays.asList(new CandidateSteps[] { steps }),
+					configuration, metaFilter);
+		} finally {
+			System.clearProperty(JUnitDescriptionGenerator.PROP_JJM_GRANULARITY);
+		}
+	}
+
+	@Test
+	public void shouldMatchStepsOfExampleRowsOnlyOnce() {
+		addStepToScenario();
+		addExamplesTableToScenario(3);
+
+		generateScenarioDescription();
+
+		verify(stepCandidate, times(1)).matches(eq("Given Step1"), anyString());
+		assertThat(generator.getTestCases(), is(3));
+	}
+
 	@Test
 	public void shouldGenerateChildrenForComposedSteps() {
 		addStepToScenario();
@@ -278,11 +413,42 @@ public class JUnitDescriptionGeneratorTest {
 				everyItem(Matchers.<Description> hasProperty("displayName",
 						startsWith("compositeStep"))));
 		assertThat(composedStep.getChildren().size(), is(2));
+		assertThat(generator.getDescriptionKinds().kindOf(composedStep),
+				is(Kind.COMPOSITE));
 		assertThat(composedStep.isSuite(), is(true));
 		assertThat(composedStep.getDisplayName(), startsWith("Given Step1"));
 		assertThat(generator.getTestCases(), is(2));
 	}
 
+	@Test
+	public void shouldExpandCompositeStepsOnlyOnce() {
+		when(scenario.getSteps()).thenReturn(
+				Arrays.asList("Given Step1", "Given Step1"));
+		when(stepCandidate.composedSteps()).thenReturn(
+				new String[] { "compositeStep1" });
+		StepCandidate composedStep1 = stepCandidateMock("compositeStep1");
+		when(stepCandidate.matches(anyString(), anyString())).thenReturn(false);
+		when(stepCandidate.matches(eq("Given Step1"), anyString())).thenReturn(
+				true);
+		when(stepCandidate.isComposite()).thenReturn(true);
+		when(steps.listCandidates()).thenReturn(
+				Arrays.asList(new StepCandidate[] { stepCandidate,
+						composedStep1 }));
+		generator = new JUnitDescriptionGenerator(
+				Arrays.asList(new CandidateSteps[] { steps }), configuration, metaFilter);
+
+		generateScenarioDescription();
+
+		verify(stepCandidate, times(1)).composedSteps();
+		assertThat(description.getChildren().size(), is(2));
+		for (Description composite : description.getChildren()) {
+			assertThat(composite.getChildren().size(), is(1));
+		}
+		assertThat(description.getChildren(),
+				allChildrenHaveUniqueDisplayNames());
+		assertThat(generator.getTestCases(), is(2));
+	}
+
 	@Test
 	public void shouldCreateDescriptionForAndStep() {
 		when(scenario.getSteps()).thenReturn(
@@ -353,6 +519,29 @@ public class JUnitDescriptionGeneratorTest {
 
 	}
 
+	@Test
+	public void shouldMakeStringsJunitSafeLikeRegexReplacement()
+			throws IOException {
+		List<String> corpus = new ArrayList<String>(Arrays.asList("", "(",
+				")", "\n", "\r\n", "a\n\n\nb", "a\r\rb\r", "(a)\n|b|",
+				"Given a step (with parentheses)\r\n|Head|\r\n|Value|\r\n"));
+		for (String story : new String[] { "Multiplication.story",
+				"MultiplicationWithExamplesAndGiven.story", "Greetings.story",
+				"ParameterizedGreetings.story" }) {
+			String text = IOUtils.toString(getClass().getResourceAsStream(
+					story));
+			corpus.add(text);
+			corpus.addAll(Arrays.asList(text.split("\n\n")));
+		}
+		for (String string : corpus) {
+			String expected = string.replaceAll("\r", "\n")
+					.replaceAll("\n{2,}", "\n").replaceAll("\n", ", ")
+					.replaceAll("[\\(\\)]", "|");
+			assertThat(JUnitDescriptionGenerator
+					.replaceLinebreaksAndParentheses(string), is(expected));
+		}
+	}
+
 	private void generateScenarioDescription() {
 		description = generator.createDescriptionFrom(scenario);
 	}
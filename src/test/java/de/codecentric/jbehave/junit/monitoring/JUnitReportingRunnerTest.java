@@ -2,18 +2,50 @@ package de.codecentric.jbehave.junit.monitoring;
 
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jbehave.core.configuration.Configuration;
+import org.jbehave.core.configuration.MostUsefulConfiguration;
 import org.jbehave.core.embedder.Embedder;
 import org.jbehave.core.embedder.EmbedderControls;
+import org.jbehave.core.junit.JUnitStories;
+import org.jbehave.core.steps.CandidateSteps;
+import org.jbehave.core.steps.InjectableStepsFactory;
+import org.jbehave.core.steps.InstanceStepsFactory;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.manipulation.Filter;
+import org.junit.runner.manipulation.Sorter;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.notification.RunNotifier;
 import org.mockito.Mockito;
 
+import de.codecentric.jbehave.junit.monitoring.step.ExampleSteps;
+import de.codecentric.jbehave.junit.monitoring.step.SlowSteps;
+
 public class JUnitReportingRunnerTest {
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Test
 	public void shouldPrepareEmbedder() {
 		EmbedderControls ec = mock(EmbedderControls.class);
@@ -47,4 +79,397 @@ public class JUnitReportingRunnerTest {
 		// candidateSteps = embedder.stepsFactory().createCandidateSteps();
 
 	}
+
+	@Test
+	public void shouldCreateCandidateStepsOnlyOnce() throws Throwable {
+		CountingStories.candidateStepsCreated = 0;
+		new JUnitReportingRunner(CountingStories.class);
+		assertThat(CountingStories.candidateStepsCreated, is(1));
+	}
+
+	@Test
+	public void shouldRunStoriesOnConfiguredThreads() throws Throwable {
+		final List<String> events = Collections
+				.synchronizedList(new ArrayList<String>());
+		final Set<String> storyThreads = Collections
+				.synchronizedSet(new HashSet<String>());
+		RunNotifier notifier = new RunNotifier();
+		notifier.addListener(new RunListener() {
+			@Override
+			public void testStarted(Description description) {
+				String thread = Thread.currentThread().getName();
+				if (thread.startsWith("jjm-story-")) {
+					storyThreads.add(thread);
+				}
+			}
+
+			@Override
+			public void testFinished(Description description) {
+				events.add("finished " + description.getDisplayName());
+			}
+
+			@Override
+			public void testFailure(Failure failure) {
+				events.add("failed " + failure.getDescription());
+			}
+
+			@Override
+			public void testRunFinished(Result result) {
+				events.add("run finished");
+			}
+		});
+
+		JUnitReportingRunner runner = new JUnitReportingRunner(
+				ConcurrentStories.class);
+		runner.run(notifier);
+
+		assertThat(storyThreads.size(), is(2));
+		assertThat(events.size(), is(9));
+		assertThat(events.get(8), is("run finished"));
+		for (String event : events) {
+			assertThat(event.startsWith("failed"), is(false));
+		}
+	}
+
+	@Test
+	public void shouldRestoreExecutorServiceOfEmbedderAfterRun()
+			throws Throwable {
+		JUnitReportingRunner runner = new JUnitReportingRunner(
+				ConcurrentStoriesWithExecutor.class);
+
+		runner.run(new RunNotifier());
+
+		Embedder embedder = ConcurrentStoriesWithExecutor.embedder;
+		assertThat(embedder.executorService(),
+				is(ConcurrentStoriesWithExecutor.EXECUTOR));
+		assertThat(embedder.executorService().isShutdown(), is(false));
+	}
+
+	@Test
+	public void shouldRunOnlyScenariosSelectedByFilter() throws Throwable {
+		JUnitReportingRunner runner = new JUnitReportingRunner(
+				ExampleScenarioJUnitStories.class);
+		Description story = runner.getDescription().getChildren().get(1);
+		int scenarios = story.getChildren().size();
+		Description scenario = story.getChildren().get(1);
+		Description step = scenario.getChildren().get(0);
+
+		runner.filter(Filter.matchMethodDescription(step));
+
+		assertThat(runner.getDescription().getChildren().size(), is(3));
+		assertThat(story.getChildren().size(), is(1));
+		assertThat(story.getChildren().get(0), is(scenario));
+		assertThat(runner.testCount(), is(scenario.testCount() + 2));
+		assertThat(scenarios > 1, is(true));
+
+		final List<String> events = Collections
+				.synchronizedList(new ArrayList<String>());
+		RunNotifier notifier = new RunNotifier();
+		notifier.addListener(new RunListener() {
+			@Override
+			public void testStarted(Description description) {
+				events.add(description.getDisplayName());
+			}
+
+			@Override
+			public void testFailure(Failure failure) {
+				events.add("failed " + failure.getDescription());
+			}
+		});
+		runner.run(notifier);
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("BeforeStories(java.lang.Object)");
+		expected.add(story.getDisplayName());
+		expected.add(scenario.getDisplayName());
+		for (Description each : scenario.getChildren()) {
+			expected.add(each.getDisplayName());
+		}
+		expected.add("AfterStories(java.lang.Object)");
+		assertThat(events, is(expected));
+	}
+
+	@Test
+	public void shouldSortStoriesBetweenBeforeAndAfterStories()
+			throws Throwable {
+		JUnitReportingRunner runner = new JUnitReportingRunner(
+				ConcurrentStories.class);
+
+		runner.sort(new Sorter(new Comparator<Description>() {
+			public int compare(Description first, Description second) {
+				return second.getDisplayName().compareTo(
+						first.getDisplayName());
+			}
+		}));
+
+		List<String> names = new ArrayList<String>();
+		for (Description child : runner.getDescription().getChildren()) {
+			names.add(child.getDisplayName());
+		}
+		assertThat(names, is(Arrays.asList(
+				"BeforeStories(java.lang.Object)", "Init.story",
+				"Greetings.story", "AfterStories(java.lang.Object)")));
+	}
+
+	@Test
+	public void shouldSkipStoriesNotStartedOncePleasedToStop() throws Throwable {
+		JUnitReportingRunner runner = new JUnitReportingRunner(
+				SequentialStories.class);
+		Description init = runner.getDescription().getChildren().get(2);
+		assertThat(init.getDisplayName(), is("Init.story"));
+		final List<String> events = Collections
+				.synchronizedList(new ArrayList<String>());
+		final RunNotifier notifier = new RunNotifier();
+		notifier.addListener(new RunListener() {
+			@Override
+			public void testStarted(Description description) {
+				events.add("started " + description.getDisplayName());
+			}
+
+			@Override
+			public void testFinished(Description description) {
+				if (description.getDisplayName().equals("Greetings.story")) {
+					notifier.pleaseStop();
+				}
+			}
+
+			@Override
+			public void testIgnored(Description description) {
+				events.add("ignored " + description.getDisplayName());
+			}
+		});
+
+		runner.run(notifier);
+
+		assertThat(events.contains("started Greetings.story"), is(true));
+		assertThat(events.contains("ignored Init.story"), is(true));
+		for (Description scenario : init.getChildren()) {
+			assertThat(events.contains("ignored " + scenario.getDisplayName()),
+					is(true));
+			for (Description step : scenario.getChildren()) {
+				assertThat(events.contains("ignored " + step.getDisplayName()),
+						is(true));
+			}
+		}
+		for (String event : events) {
+			assertThat(event, not(startsWith("started Init.story")));
+			assertThat(event, not(startsWith("started Scenario: Do some")));
+			assertThat(event, not(startsWith("started Given some init")));
+			assertThat(event, not(startsWith("started AfterStories")));
+		}
+	}
+
+	@Test
+	public void shouldReportUnchangedStoriesAsIgnoredOncePassed()
+			throws Throwable {
+		System.setProperty(AffectedStories.PROP_JJM_AFFECTED_ONLY, folder
+				.getRoot().getPath());
+		try {
+			List<String> firstRun = runAndRecordEvents(ConcurrentStories.class);
+			List<String> secondRun = runAndRecordEvents(ConcurrentStories.class);
+
+			assertThat(firstRun.contains("ignored Greetings.story"), is(false));
+			assertThat(secondRun.contains("started Greetings.story"), is(false));
+			assertThat(secondRun.contains("started Init.story"), is(false));
+			assertThat(secondRun
+					.contains("started BeforeStories(java.lang.Object)"),
+					is(true));
+			int ignored = 0;
+			for (String event : secondRun) {
+				assertThat(event.startsWith("failed"), is(false));
+				if (event.startsWith("ignored")) {
+					ignored++;
+				}
+			}
+			assertThat(ignored, is(new JUnitReportingRunner(
+					ConcurrentStories.class).testCount() - 2));
+		} finally {
+			System.clearProperty(AffectedStories.PROP_JJM_AFFECTED_ONLY);
+		}
+	}
+
+	@Test
+	public void shouldRunStoriesThatTimedOutAgain() throws Throwable {
+		System.setProperty(AffectedStories.PROP_JJM_AFFECTED_ONLY, folder
+				.getRoot().getPath());
+		try {
+			List<String> firstRun = runAndRecordEvents(TimingOutStories.class);
+			List<String> secondRun = runAndRecordEvents(TimingOutStories.class);
+
+			assertThat(firstRun.contains("failed Slow.story"), is(true));
+			assertThat(secondRun.contains("started Slow.story"), is(true));
+		} finally {
+			System.clearProperty(AffectedStories.PROP_JJM_AFFECTED_ONLY);
+		}
+	}
+
+	@Test
+	public void shouldRunStoryAgainOncePartlyRunByFilter() throws Throwable {
+		System.setProperty(AffectedStories.PROP_JJM_AFFECTED_ONLY, folder
+				.getRoot().getPath());
+		try {
+			JUnitReportingRunner filtered = new JUnitReportingRunner(
+					ExampleScenarioJUnitStories.class);
+			Description story = filtered.getDescription().getChildren().get(1);
+			Description step = story.getChildren().get(1).getChildren().get(0);
+			filtered.filter(Filter.matchMethodDescription(step));
+
+			List<String> filteredRun = runAndRecordEvents(filtered);
+			List<String> nextRun = runAndRecordEvents(new JUnitReportingRunner(
+					ExampleScenarioJUnitStories.class));
+
+			assertThat(filteredRun.contains("started " + step.getDisplayName()),
+					is(true));
+			for (String event : filteredRun) {
+				assertThat(event.startsWith("failed"), is(false));
+			}
+			assertThat(nextRun.contains("started " + story.getDisplayName()),
+					is(true));
+		} finally {
+			System.clearProperty(AffectedStories.PROP_JJM_AFFECTED_ONLY);
+		}
+	}
+
+	private List<String> runAndRecordEvents(
+			Class<? extends JUnitStories> testClass) throws Throwable {
+		return runAndRecordEvents(new JUnitReportingRunner(testClass));
+	}
+
+	private List<String> runAndRecordEvents(JUnitReportingRunner runner) {
+		final List<String> events = Collections
+				.synchronizedList(new ArrayList<String>());
+		RunNotifier notifier = new RunNotifier();
+		notifier.addListener(new RunListener() {
+			@Override
+			public void testStarted(Description description) {
+				events.add("started " + description.getDisplayName());
+			}
+
+			@Override
+			public void testIgnored(Description description) {
+				events.add("ignored " + description.getDisplayName());
+			}
+
+			@Override
+			public void testFailure(Failure failure) {
+				events.add("failed " + failure.getDescription());
+			}
+		});
+		runner.run(notifier);
+		return events;
+	}
+
+	public static class SequentialStories extends JUnitStories {
+		public SequentialStories() {
+			JUnitReportingRunner.recommandedControls(configuredEmbedder());
+		}
+
+		@Override
+		public Configuration configuration() {
+			return new MostUsefulConfiguration();
+		}
+
+		@Override
+		public InjectableStepsFactory stepsFactory() {
+			return new InstanceStepsFactory(configuration(), new ExampleSteps());
+		}
+
+		@Override
+		protected List<String> storyPaths() {
+			return Arrays.asList(
+					"de/codecentric/jbehave/junit/monitoring/Greetings.story",
+					"de/codecentric/jbehave/junit/monitoring/Init.story");
+		}
+	}
+
+	@StoryThreads("2")
+	public static class ConcurrentStories extends JUnitStories {
+		public ConcurrentStories() {
+			JUnitReportingRunner.recommandedControls(configuredEmbedder());
+		}
+
+		@Override
+		public Configuration configuration() {
+			return new MostUsefulConfiguration();
+		}
+
+		@Override
+		public InjectableStepsFactory stepsFactory() {
+			return new InstanceStepsFactory(configuration(), new ExampleSteps());
+		}
+
+		@Override
+		protected List<String> storyPaths() {
+			return Arrays.asList(
+					"de/codecentric/jbehave/junit/monitoring/Greetings.story",
+					"de/codecentric/jbehave/junit/monitoring/Init.story");
+		}
+	}
+
+	public static class TimingOutStories extends JUnitStories {
+		public TimingOutStories() {
+			JUnitReportingRunner.recommandedControls(configuredEmbedder())
+					.useStoryTimeoutInSecs(1);
+		}
+
+		@Override
+		public Configuration configuration() {
+			return new MostUsefulConfiguration();
+		}
+
+		@Override
+		public InjectableStepsFactory stepsFactory() {
+			return new InstanceStepsFactory(configuration(),
+					new ExampleSteps(), new SlowSteps());
+		}
+
+		@Override
+		protected List<String> storyPaths() {
+			return Arrays
+					.asList("de/codecentric/jbehave/junit/monitoring/Slow.story");
+		}
+	}
+
+	public static class CountingStories extends JUnitStories {
+		static int candidateStepsCreated;
+
+		@Override
+		public Configuration configuration() {
+			return new MostUsefulConfiguration();
+		}
+
+		@Override
+		public InjectableStepsFactory stepsFactory() {
+			return new InstanceStepsFactory(configuration(), new ExampleSteps()) {
+				@Override
+				public List<CandidateSteps> createCandidateSteps() {
+					candidateStepsCreated++;
+					return super.createCandidateSteps();
+				}
+			};
+		}
+
+		@Override
+		protected List<String> storyPaths() {
+			return Arrays
+					.asList("de/codecentric/jbehave/junit/monitoring/Multiplication.story");
+		}
+	}
+
+	public static class ConcurrentStoriesWithExecutor extends
+			ConcurrentStories {
+		static final ExecutorService EXECUTOR = Executors
+				.newSingleThreadExecutor();
+		static Embedder embedder;
+
+		public ConcurrentStoriesWithExecutor() {
+			configuredEmbedder().useExecutorService(EXECUTOR);
+			embedder = configuredEmbedder();
+		}
+
+		@Override
+		protected List<String> storyPaths() {
+			return super.storyPaths();
+		}
+	}
 }
@@ -1,19 +1,28 @@
 package de.codecentric.jbehave.junit.monitoring;
 
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import org.jbehave.core.failures.FailingUponPendingStep;
 import org.jbehave.core.failures.PendingStepStrategy;
 import org.jbehave.core.failures.UUIDExceptionWrapper;
 import org.jbehave.core.model.Story;
+import org.jbehave.core.model.StoryDuration;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.Description;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
 import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mock;
@@ -21,6 +30,11 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.verification.VerificationModeFactory;
 
+import de.codecentric.jbehave.junit.monitoring.DescriptionKinds.Kind;
+import de.codecentric.jbehave.junit.monitoring.JUnitDescriptionGenerator.Granularity;
+import de.codecentric.jbehave.junit.monitoring.JUnitScenarioReporter.StoryOutcome;
+import de.codecentric.jbehave.junit.monitoring.Timings.Level;
+
 public class JUnitScenarioReporterTest {
 
 	private static final String NAME_SCENARIO = "scenario";
@@ -111,6 +125,206 @@ public class JUnitScenarioReporterTest {
 
 	}
 
+	@Test
+	public void shouldStartStoryWithoutScenarios() {
+		Description emptyStory = Description
+				.createSuiteDescription("empty.story");
+		rootDescription.addChild(emptyStory);
+		Story story = new Story();
+		story.namedAs("empty.story");
+
+		reporter = new JUnitScenarioReporter(notifier, ONE_STEP,
+				rootDescription);
+		reporter.beforeStory(story, false);
+
+		verify(notifier).fireTestStarted(emptyStory);
+	}
+
+	@Test
+	public void shouldKeepPositionPerThreadForConcurrentStories()
+			throws Exception {
+		Description child = addChildToScenario("child");
+		Description otherStoryDescription = Description
+				.createSuiteDescription("other.story");
+		Description otherScenarioDescription = Description
+				.createSuiteDescription("otherScenario");
+		Description otherChild = Description.createTestDescription(
+				this.getClass(), "otherChild");
+		rootDescription.addChild(otherStoryDescription);
+		otherStoryDescription.addChild(otherScenarioDescription);
+		otherScenarioDescription.addChild(otherChild);
+		final Story otherStory = new Story();
+		otherStory.namedAs("other.story");
+
+		reporter = new JUnitScenarioReporter(notifier, 2 * ONE_STEP,
+				rootDescription);
+		ExecutorService firstThread = Executors.newSingleThreadExecutor();
+		ExecutorService secondThread = Executors.newSingleThreadExecutor();
+		try {
+			runOn(firstThread, new Runnable() {
+				public void run() {
+					reportStoryAndScenarioStart(reporter);
+				}
+			});
+			runOn(secondThread, new Runnable() {
+				public void run() {
+					reporter.beforeStory(otherStory, false);
+					reporter.beforeScenario("otherScenario");
+					reporter.beforeStep("otherChild");
+				}
+			});
+			runOn(firstThread, new Runnable() {
+				public void run() {
+					reportStepSuccess(reporter);
+				}
+			});
+			runOn(secondThread, new Runnable() {
+				public void run() {
+					reporter.successful("otherChild");
+					reporter.afterScenario();
+					reporter.afterStory(false);
+				}
+			});
+			runOn(firstThread, new Runnable() {
+				public void run() {
+					reporter.afterScenario();
+					reporter.afterStory(false);
+				}
+			});
+		} finally {
+			firstThread.shutdown();
+			secondThread.shutdown();
+		}
+
+		verifyStepSuccess(child);
+		verifyStepSuccess(otherChild);
+		verify(notifier).fireTestFinished(otherScenarioDescription);
+		verify(notifier).fireTestFinished(otherStoryDescription);
+		verifyTestStart();
+		verifyTestFinish();
+	}
+
+	private void runOn(ExecutorService thread, Runnable events)
+			throws Exception {
+		thread.submit(events).get();
+	}
+
+	@Test
+	public void shouldRecordTimingsOfStoryScenarioAndSteps() {
+		addChildToScenario("child");
+		System.setProperty(Timings.PROP_JJM_TIMINGS, "5");
+		try {
+			reporter = new JUnitScenarioReporter(notifier, ONE_STEP,
+					rootDescription);
+		} finally {
+			System.clearProperty(Timings.PROP_JJM_TIMINGS);
+		}
+
+		reportStoryAndScenarioStart(reporter);
+		reportStepSuccess(reporter);
+		reportScenarioAndStoryFinish(reporter);
+
+		Timings timings = reporter.getTimings();
+		assertThat(timings.getTimings(Level.STORY).get(0).getName(),
+				is(story.getName()));
+		assertThat(timings.getTimings(Level.SCENARIO).get(0).getName(),
+				is(NAME_SCENARIO));
+		assertThat(timings.getTimings(Level.STEP).get(0).getName(),
+				is("child"));
+
+		reporter.logger = mock(Logger.class);
+		reporter.close();
+		verify(reporter.logger).report("{}", timings.summary());
+	}
+
+	@Test
+	public void shouldKeepMetricsOfAsyncNotifier() {
+		System.setProperty(AsyncRunNotifier.PROP_JJM_NOTIFIER_QUEUE, "10");
+		try {
+			reporter = new JUnitScenarioReporter(notifier, ONE_STEP,
+					rootDescription);
+		} finally {
+			System.clearProperty(AsyncRunNotifier.PROP_JJM_NOTIFIER_QUEUE);
+		}
+		reporter.logger = mock(Logger.class);
+		reporter.getAsyncRunNotifier().logger = reporter.logger;
+
+		reportStoryAndScenarioStart(reporter);
+		reportScenarioAndStoryFinish(reporter);
+		reporter.close();
+
+		assertThat(reporter.getAsyncRunNotifier().getNotifications(),
+				is(greaterThan(0L)));
+	}
+
+	@Test
+	public void shouldNotRecordTimingsOfStoriesOnSeveralThreads() {
+		addChildToScenario("child");
+		System.setProperty(Timings.PROP_JJM_TIMINGS, "5");
+		try {
+			reporter = new JUnitScenarioReporter(notifier, ONE_STEP,
+					rootDescription);
+		} finally {
+			System.clearProperty(Timings.PROP_JJM_TIMINGS);
+		}
+		reporter.useMultiThreading(true);
+
+		reportStoryAndScenarioStart(reporter);
+		reportStepSuccess(reporter);
+		reportScenarioAndStoryFinish(reporter);
+
+		assertThat(reporter.getTimings().isEnabled(), is(false));
+		assertThat(reporter.getTimings().getTimings(Level.STORY).isEmpty(),
+				is(true));
+	}
+
+	@Test
+	public void shouldReportStepsOnScenarioWithScenarioGranularity() {
+		reporter = new JUnitScenarioReporter(notifier, 1, rootDescription);
+		reporter.useGranularity(Granularity.SCENARIO);
+
+		reportStoryAndScenarioStart(reporter);
+		reportStepFailure(reporter);
+		reportStepFailure(reporter);
+		reporter.afterScenario();
+		reporter.afterStory(false);
+
+		verifyTestStart();
+		ArgumentCaptor<Failure> failure = ArgumentCaptor
+				.forClass(Failure.class);
+		verify(notifier).fireTestFailure(failure.capture());
+		assertThat(failure.getValue().getDescription(),
+				is(scenarioDescription));
+		verify(notifier, Mockito.never()).fireTestFinished(scenarioDescription);
+		verifyStoryFinished();
+		verifyTestRunFinished();
+	}
+
+	@Test
+	public void shouldReportScenariosOnStoryWithStoryGranularity() {
+		Description storyTest = Description.createSuiteDescription("story.story");
+		Description root = Description.createSuiteDescription(NAME_ROOT);
+		root.addChild(storyTest);
+		Story story = new Story();
+		story.namedAs("story.story");
+		reporter = new JUnitScenarioReporter(notifier, 1, root);
+		reporter.useGranularity(Granularity.STORY);
+
+		reporter.beforeStory(story, false);
+		reporter.beforeScenario("first");
+		reportStepSuccess(reporter);
+		reporter.afterScenario();
+		reporter.beforeScenario("second");
+		reportStepSuccess(reporter);
+		reporter.afterScenario();
+		reporter.afterStory(false);
+
+		verify(notifier).fireTestStarted(storyTest);
+		verify(notifier).fireTestFinished(storyTest);
+		verify(notifier).fireTestStarted(Mockito.<Description> anyObject());
+		verifyTestRunFinished();
+	}
+
 	@Test
 	public void shouldNotifyAboutBeforeStories() {
 		Description beforeStories = addBeforeStories();
@@ -305,6 +519,38 @@ public class JUnitScenarioReporterTest {
 		verifyTestFinish();
 	}
 
+	@Test
+	public void shouldReportStepsOfCollapsedExamplesOnPageOfRows() {
+		// one story, one scenario, three example rows in two pages
+		Description firstPage = addChildToScenario(JUnitDescriptionGenerator.EXAMPLE_DESCRIPTION_PREFIX
+				+ "rows 1-2");
+		Description secondPage = addChildToScenario(JUnitDescriptionGenerator.EXAMPLE_DESCRIPTION_PREFIX
+				+ "rows 3-3");
+		reporter = new JUnitScenarioReporter(notifier, 2, rootDescription);
+		reporter.useExamplesPerDescription(2);
+
+		reportStoryAndScenarioStart(reporter);
+		reporter.example(null);
+		reportStepSuccess(reporter);
+		reporter.example(null);
+		reportStepSuccess(reporter);
+		reporter.example(null);
+		reporter.beforeStep("Step");
+		reporter.failed("Step", new RuntimeException("FAIL"));
+		reporter.afterExamples();
+		reportScenarioAndStoryFinish(reporter);
+
+		verifyTestStart();
+		verifyStepSuccess(firstPage);
+		verify(notifier).fireTestStarted(secondPage);
+		ArgumentCaptor<Failure> failure = ArgumentCaptor
+				.forClass(Failure.class);
+		verify(notifier).fireTestFailure(failure.capture());
+		assertThat(failure.getValue().getDescription(), is(secondPage));
+		verify(notifier, Mockito.never()).fireTestFinished(secondPage);
+		verifyTestFinish();
+	}
+
 	@Test
 	public void shouldFailForPendingStepsIfConfigurationSaysSo() {
 		Description child = addChildToScenario("child");
@@ -351,6 +597,90 @@ public class JUnitScenarioReporterTest {
 		assertThat(argument.getValue().getDescription(), is(storyDescription));
 	}
 
+	@Test
+	public void shouldIgnoreTestsAndSkipStoriesOnceStopRequested() {
+		Description child1 = addChildToScenario("child");
+		Description child2 = addChildToScenario("child.");
+		Description otherStory = Description.createSuiteDescription("other");
+		Description otherStep = Description.createTestDescription(
+				this.getClass(), "otherStep");
+		otherStory.addChild(otherStep);
+		rootDescription.addChild(otherStory);
+		doThrow(new StoppedByUserException()).when(notifier).fireTestStarted(
+				child2);
+
+		reporter = new JUnitScenarioReporter(notifier, 3, rootDescription);
+
+		reportStoryAndScenarioStart(reporter);
+		reportStepSuccess(reporter);
+		assertThat(reporter.isStopRequested(), is(false));
+		reportStepSuccess(reporter);
+		assertThat(reporter.isStopRequested(), is(true));
+		reporter.afterScenario();
+		reporter.afterStory(false);
+		Story other = new Story();
+		other.namedAs("other");
+		reporter.storySkipped(other);
+
+		verifyStepSuccess(child1);
+		verify(notifier).fireTestIgnored(child2);
+		verify(notifier, never()).fireTestFinished(child2);
+		verify(notifier).fireTestIgnored(otherStep);
+		verify(notifier, never()).fireTestStarted(otherStep);
+		verifyTestRunFinished();
+		assertThat(reporter.getStoryOutcomes().get(0).isComplete(), is(false));
+		assertThat(reporter.getStoryOutcomes().get(1).isComplete(), is(false));
+	}
+
+	@Test
+	public void shouldReleaseFinishedStoryAndKeepItsOutcomeInLeanMode() {
+		Description child1 = addChildToScenario("child");
+		Description child2 = addChildToScenario("child.");
+		DescriptionKinds kinds = DescriptionKinds.fromStructure(rootDescription);
+		System.setProperty(JUnitScenarioReporter.PROP_JJM_REPORTER_LEAN, "true");
+		try {
+			reporter = new JUnitScenarioReporter(notifier, 3, rootDescription,
+					kinds);
+		} finally {
+			System.clearProperty(JUnitScenarioReporter.PROP_JJM_REPORTER_LEAN);
+		}
+
+		reportStoryAndScenarioStart(reporter);
+		reportStepSuccess(reporter);
+		reportStepFailure(reporter);
+		reportScenarioAndStoryFinish(reporter);
+
+		verifyStepSuccess(child1);
+		verify(notifier).fireTestStarted(child2);
+		StoryOutcome outcome = reporter.getStoryOutcomes().get(0);
+		assertThat(outcome.getName(), is(story.getName()));
+		assertThat(outcome.getPassed(), is(1));
+		assertThat(outcome.getFailed(), is(1));
+		assertThat(outcome.getIgnored(), is(0));
+		assertThat(storyDescription.getChildren().contains(scenarioDescription),
+				is(true));
+		assertThat(kinds.kindOf(scenarioDescription), is((Kind) null));
+		assertThat(kinds.ordinalOf(child2), is(-1));
+	}
+
+	@Test
+	public void shouldFailStoryWhenCancelled() {
+		reporter = new JUnitScenarioReporter(notifier, 1, rootDescription);
+
+		reporter.beforeStory(story, false);
+		reporter.storyCancelled(story, new StoryDuration(2, 1));
+		reporter.afterStory(false);
+
+		ArgumentCaptor<Failure> argument = ArgumentCaptor
+				.forClass(Failure.class);
+		verify(notifier).fireTestFailure(argument.capture());
+		assertThat(argument.getValue().getDescription(), is(storyDescription));
+		assertThat(argument.getValue().getMessage(),
+				is("Story cancelled after 2 s (timeout 1 s)"));
+		verifyStoryFinished();
+		assertThat(reporter.getStoryOutcomes().get(0).getFailed(), is(1));
+	}
+
 	private void reportScenarioAndStoryFinish(JUnitScenarioReporter reporter) {
 		reporter.afterScenario();
 		// test should not be finished until we send the final event
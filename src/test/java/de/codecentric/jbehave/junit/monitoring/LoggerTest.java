@@ -48,6 +48,20 @@ public class LoggerTest {
 		verifyZeroInteractions(stream);
 	}
 
+	@Test
+	public void shouldLogWarningForLogLevelNone() {
+		setLevel("NONE");
+		logger.warn("{} of {}", 1, 2);
+		verify(stream).println("WARN: 1 of 2");
+	}
+
+	@Test
+	public void shouldReportForLogLevelNone() {
+		setLevel("NONE");
+		logger.report("{} of {}", 1, 2);
+		verify(stream).println("1 of 2");
+	}
+
 	@Test
 	public void shouldLogInfoForInfo() {
 		setLevel("INFO");
@@ -0,0 +1,46 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jbehave.core.configuration.Configuration;
+import org.jbehave.core.embedder.StoryRunner;
+import org.jbehave.core.model.Story;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ParallelStoryParserTest {
+
+	@Test
+	public void shouldKeepOrderOfStoryPathsWhenParsingInParallel() {
+		Configuration configuration = mock(Configuration.class);
+		StoryRunner storyRunner = mock(StoryRunner.class);
+		when(storyRunner.storyOfPath(eq(configuration), anyString()))
+				.thenAnswer(new Answer<Story>() {
+					public Story answer(InvocationOnMock invocation) {
+						String path = (String) invocation.getArguments()[1];
+						return new Story(path);
+					}
+				});
+		List<String> storyPaths = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			storyPaths.add("path/to/story" + i + ".story");
+		}
+
+		List<Story> stories = new ParallelStoryParser(configuration,
+				storyRunner, 4).parse(storyPaths);
+
+		assertThat(stories.size(), is(storyPaths.size()));
+		for (int i = 0; i < storyPaths.size(); i++) {
+			assertThat(stories.get(i).getPath(), is(storyPaths.get(i)));
+		}
+	}
+}
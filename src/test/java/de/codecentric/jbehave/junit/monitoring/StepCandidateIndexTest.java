@@ -0,0 +1,95 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jbehave.core.configuration.Configuration;
+import org.jbehave.core.configuration.MostUsefulConfiguration;
+import org.jbehave.core.steps.CandidateSteps;
+import org.jbehave.core.steps.InstanceStepsFactory;
+import org.jbehave.core.steps.StepCandidate;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.codecentric.jbehave.junit.monitoring.step.ExampleSteps;
+
+public class StepCandidateIndexTest {
+
+	private List<StepCandidate> candidates;
+	private StepCandidateIndex index;
+
+	@Before
+	public void setUp() {
+		Configuration configuration = new MostUsefulConfiguration();
+		candidates = new ArrayList<StepCandidate>();
+		for (CandidateSteps steps : new InstanceStepsFactory(configuration,
+				new ExampleSteps()).createCandidateSteps()) {
+			candidates.addAll(steps.listCandidates());
+		}
+		index = new StepCandidateIndex(candidates, configuration.keywords(),
+				configuration.stepPatternParser());
+	}
+
+	@Test
+	public void shouldFindSameFirstMatchAsFullScan() {
+		List<String> steps = Arrays.asList("Given a variable x with value 2",
+				"When I multiply x by 2", "And I multiply x by 3",
+				"Then x should equal 12", "When I multiply x with all of:\n|Value|\n|3|",
+				"Given the variables: |name|value|", "Given a complex situation",
+				"And a Greeting to Bob", "Given a pending step",
+				"!-- a comment", "Then the result should be 6");
+		String previousNonAndStep = null;
+		for (String step : steps) {
+			StepCandidate expected = firstMatch(candidates, step,
+					previousNonAndStep);
+			StepCandidate actual = firstMatch(index.candidatesFor(step), step,
+					previousNonAndStep);
+			assertThat(step, actual, sameInstance(expected));
+			if (expected != null && !expected.isAndStep(step)) {
+				previousNonAndStep = expected.getStartingWord() + " ";
+			}
+		}
+	}
+
+	@Test
+	public void shouldOnlyReturnCandidatesWithMatchingStartingWord() {
+		List<StepCandidate> found = index
+				.candidatesFor("Given a variable x with value 2");
+		assertThat(found, hasItem(candidateFor("a variable x with value $value")));
+		assertThat(found, not(hasItem(candidateFor("I multiply x by $value"))));
+		assertThat(found, not(hasItem(candidateFor("some initialization"))));
+	}
+
+	@Test
+	public void shouldReturnCandidatesOfAllTypesForAndSteps() {
+		List<StepCandidate> found = index.candidatesFor("And x should equal 4");
+		assertThat(found, hasItem(candidateFor("x should equal $value")));
+		assertThat(found.size(), is(1));
+	}
+
+	private StepCandidate candidateFor(String pattern) {
+		for (StepCandidate candidate : candidates) {
+			if (candidate.getPatternAsString().equals(pattern)) {
+				return candidate;
+			}
+		}
+		throw new IllegalArgumentException(pattern);
+	}
+
+	private StepCandidate firstMatch(List<StepCandidate> candidates,
+			String step, String previousNonAndStep) {
+		for (StepCandidate candidate : candidates) {
+			if (candidate.matches(step, previousNonAndStep)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,54 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+
+public class StepSequencesTest {
+
+	@Test
+	public void shouldFlattenStepsOfScenarioAndExampleRows() {
+		Description root = Description.createSuiteDescription("root");
+		Description story = Description.createSuiteDescription("story");
+		Description scenario = Description.createSuiteDescription("scenario");
+		Description composite = Description.createTestDescription(
+				Object.class, "composite");
+		Description composed = Description.createTestDescription(Object.class,
+				"composed");
+		Description firstRow = Description
+				.createSuiteDescription(JUnitDescriptionGenerator.EXAMPLE_DESCRIPTION_PREFIX
+						+ "row");
+		Description secondRow = Description
+				.createSuiteDescription(JUnitDescriptionGenerator.EXAMPLE_DESCRIPTION_PREFIX
+						+ "row");
+		Description firstRowStep = Description.createTestDescription(
+				Object.class, "step");
+		Description secondRowStep = Description.createTestDescription(
+				Object.class, "step");
+		root.addChild(story);
+		story.addChild(scenario);
+		scenario.addChild(composite);
+		composite.addChild(composed);
+		scenario.addChild(firstRow);
+		scenario.addChild(secondRow);
+		firstRow.addChild(firstRowStep);
+		secondRow.addChild(secondRowStep);
+
+		StepSequences sequences = new StepSequences(root,
+				DescriptionKinds.fromStructure(root));
+
+		assertThat(Arrays.asList(sequences.stepsOf(scenario)),
+				is(Arrays.asList(composite, composed)));
+		assertThat(sequences.examplesOf(scenario)[0], sameInstance(firstRow));
+		assertThat(sequences.examplesOf(scenario)[1], sameInstance(secondRow));
+		assertThat(sequences.stepsOf(firstRow)[0], sameInstance(firstRowStep));
+		assertThat(sequences.stepsOf(secondRow)[0],
+				sameInstance(secondRowStep));
+		assertThat(sequences.examplesOf(story).length, is(0));
+	}
+}
@@ -0,0 +1,121 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+
+import de.codecentric.jbehave.junit.monitoring.DescriptionKinds.Kind;
+
+public class StoryDescriptionCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+
+	@Before
+	public void setUp() {
+		directory = folder.getRoot();
+		System.setProperty(StoryDescriptionCache.PROP_JJM_DESCRIPTION_CACHE,
+				directory.getPath());
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty(StoryDescriptionCache.PROP_JJM_DESCRIPTION_CACHE);
+	}
+
+	@Test
+	public void shouldReturnStoredDescriptionForSameContent() {
+		StoryDescriptionCache cache = new StoryDescriptionCache(new File(
+				directory, "test.descriptions"), "fingerprint");
+		cache.put("a.story", cached("hash"));
+		cache.save();
+
+		StoryDescriptionCache reloaded = new StoryDescriptionCache(new File(
+				directory, "test.descriptions"), "fingerprint");
+		assertThat(reloaded.get("a.story", "hash"), is(notNullValue()));
+		assertThat(reloaded.get("a.story", "otherHash"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldDiscardEntriesForChangedFingerprint() {
+		StoryDescriptionCache cache = new StoryDescriptionCache(new File(
+				directory, "test.descriptions"), "fingerprint");
+		cache.put("a.story", cached("hash"));
+		cache.save();
+
+		StoryDescriptionCache reloaded = new StoryDescriptionCache(new File(
+				directory, "test.descriptions"), "otherFingerprint");
+		assertThat(reloaded.get("a.story", "hash"), is(nullValue()));
+	}
+
+	@Test
+	public void shouldRestoreKindsOfDescriptions() {
+		Description story = Description.createSuiteDescription("a.story");
+		Description scenario = Description.createSuiteDescription("scenario");
+		story.addChild(scenario);
+		DescriptionKinds kinds = new DescriptionKinds();
+		kinds.register(story, Kind.STORY);
+		kinds.register(scenario, Kind.SCENARIO);
+		StoryDescriptionCache cache = new StoryDescriptionCache(new File(
+				directory, "test.descriptions"), "fingerprint");
+		cache.put("a.story", new CachedStoryDescription("hash", story, kinds,
+				0, 1, Arrays.asList("a.story"), Arrays.asList("a.story")));
+		cache.save();
+
+		StoryDescriptionCache reloaded = new StoryDescriptionCache(new File(
+				directory, "test.descriptions"), "fingerprint");
+		DescriptionKinds restoredKinds = new DescriptionKinds();
+		Description restored = reloaded.get("a.story", "hash").getDescription(
+				restoredKinds);
+		assertThat(restoredKinds.kindOf(restored), is(Kind.STORY));
+		assertThat(restoredKinds.kindOf(restored.getChildren().get(0)),
+				is(Kind.SCENARIO));
+	}
+
+	@Test
+	public void shouldRestoreSameDescriptionsInRunner() throws Throwable {
+		JUnitReportingRunner generated = new JUnitReportingRunner(
+				ExampleScenarioJUnitStories.class);
+		JUnitReportingRunner restored = new JUnitReportingRunner(
+				ExampleScenarioJUnitStories.class);
+
+		assertThat(new File(directory,
+				ExampleScenarioJUnitStories.class.getName() + ".descriptions")
+				.isFile(), is(true));
+		assertThat(restored.testCount(), is(generated.testCount()));
+		assertSameTree(restored.getDescription(), generated.getDescription());
+	}
+
+	private void assertSameTree(Description actual, Description expected) {
+		assertThat(actual.getDisplayName(), is(expected.getDisplayName()));
+		assertThat(actual.isTest(), is(expected.isTest()));
+		assertThat(actual.getTestClass(), is((Object) expected.getTestClass()));
+		assertThat(actual.getMethodName(), is(expected.getMethodName()));
+		assertThat(actual.getChildren().size(),
+				is(expected.getChildren().size()));
+		for (int i = 0; i < expected.getChildren().size(); i++) {
+			assertSameTree(actual.getChildren().get(i), expected.getChildren()
+					.get(i));
+		}
+	}
+
+	private CachedStoryDescription cached(String contentHash) {
+		return new CachedStoryDescription(contentHash,
+				Description.createSuiteDescription("a.story"),
+				new DescriptionKinds(), 1, 1,
+				Arrays.asList("a.story"), Arrays.asList("a.story"));
+	}
+}
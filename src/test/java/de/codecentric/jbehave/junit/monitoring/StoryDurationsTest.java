@@ -0,0 +1,119 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StoryDurationsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), "test.durations");
+	}
+
+	@Test
+	public void shouldReadDurationsOfPreviousRun() {
+		StoryDurations durations = new StoryDurations(file);
+		durations.record("a.story", 100);
+		durations.save();
+
+		StoryDurations next = new StoryDurations(file);
+		assertThat(next.previousMillis("a.story"), is(100L));
+		assertThat(next.previousMillis("b.story"), is(-1L));
+	}
+
+	@Test
+	public void shouldKeepDurationsOfStoriesNotRun() {
+		StoryDurations durations = new StoryDurations(file);
+		durations.record("a.story", 100);
+		durations.record("b.story", 200);
+		durations.save();
+		StoryDurations next = new StoryDurations(file);
+		next.record("a.story", 150);
+		next.save();
+
+		StoryDurations last = new StoryDurations(file);
+		assertThat(last.previousMillis("a.story"), is(150L));
+		assertThat(last.previousMillis("b.story"), is(200L));
+	}
+
+	@Test
+	public void shouldOrderLongestFirstEstimatingUnknownStoriesByMean() {
+		StoryDurations durations = new StoryDurations(file);
+		durations.record("a.story", 10);
+		durations.record("b.story", 50);
+		durations.record("c.story", 30);
+		durations.save();
+		StoryDurations next = new StoryDurations(file);
+
+		List<String> ordered = next.longestFirst(Arrays.asList("a.story",
+				"new.story", "b.story", "c.story"));
+
+		assertThat(ordered, is(Arrays.asList("b.story", "new.story",
+				"c.story", "a.story")));
+	}
+
+	@Test
+	public void shouldPredictTimeOnThreads() {
+		StoryDurations durations = new StoryDurations(file);
+		durations.record("a.story", 50);
+		durations.record("b.story", 40);
+		durations.record("c.story", 30);
+		durations.record("d.story", 20);
+		durations.save();
+		StoryDurations next = new StoryDurations(file);
+		List<String> storyPaths = Arrays.asList("a.story", "b.story",
+				"c.story", "d.story");
+
+		assertThat(next.predictMillis(storyPaths, 1), is(140L));
+		assertThat(next.predictMillis(storyPaths, 2), is(70L));
+		assertThat(next.predictMillis(Arrays.asList("unknown.story"), 2),
+				is(-1L));
+	}
+
+	@Test
+	public void shouldReportPredictedAndActualTime() {
+		StoryDurations durations = new StoryDurations(file);
+		durations.logger = mock(Logger.class);
+
+		durations.record("a.story", 40);
+		durations.save();
+		StoryDurations next = new StoryDurations(file);
+		next.logger = durations.logger;
+		next.predictMillis(Arrays.asList("a.story"), 1);
+		next.report(42);
+		durations.report(43);
+
+		verify(durations.logger).report(
+				"Story durations: predicted {}, actual {} ms", "40 ms", 42L);
+		verify(durations.logger).report(
+				"Story durations: predicted {}, actual {} ms", "unknown", 43L);
+	}
+
+	@Test
+	public void shouldBeDisabledWithoutSystemProperty() {
+		StoryDurations durations = StoryDurations
+				.forTestClass(StoryDurationsTest.class);
+		durations.record("a.story", 100);
+
+		assertThat(durations.isEnabled(), is(false));
+		assertThat(durations.previousMillis("a.story"), is(-1L));
+		assertThat(durations.longestFirst(Arrays.asList("b.story", "a.story")),
+				is(Arrays.asList("b.story", "a.story")));
+	}
+}
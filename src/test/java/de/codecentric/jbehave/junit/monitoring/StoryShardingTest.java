@@ -0,0 +1,98 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.codecentric.jbehave.junit.monitoring.StorySharding.Strategy;
+
+public class StoryShardingTest {
+
+	private final List<String> storyPaths = Arrays.asList("a.story",
+			"b.story", "c.story", "d.story", "e.story", "f.story", "g.story");
+
+	@Test
+	public void shouldAssignEveryStoryToOneShardByHash() {
+		StorySharding sharding = new StorySharding(3, 1, Strategy.HASH);
+
+		int[] shards = sharding.shardsByHash(storyPaths);
+
+		for (int i = 0; i < shards.length; i++) {
+			int hash = ("abcdefg".charAt(i) + ".story").hashCode();
+			assertThat(shards[i], is((hash & Integer.MAX_VALUE) % 3 + 1));
+		}
+		assertArrayEquals(shards, sharding.shardsByHash(storyPaths));
+	}
+
+	@Test
+	public void shouldBalanceShardsBySize() {
+		StorySharding sharding = new StorySharding(3, 1, Strategy.SIZE);
+		long[] sizes = { 50, 40, 30, 20, 10, 10, 10 };
+
+		int[] shards = sharding.shardsBySize(storyPaths, sizes);
+
+		assertArrayEquals(new int[] { 1, 2, 3, 3, 2, 1, 2 }, shards);
+		long[] load = new long[3];
+		for (int i = 0; i < shards.length; i++) {
+			load[shards[i] - 1] += sizes[i];
+		}
+		assertArrayEquals(new long[] { 60, 60, 50 }, load);
+	}
+
+	@Test
+	public void shouldBreakTiesBySizeByPath() {
+		StorySharding sharding = new StorySharding(2, 1, Strategy.SIZE);
+		List<String> reversed = new ArrayList<String>(storyPaths.subList(0, 4));
+		Collections.reverse(reversed);
+
+		int[] shards = sharding.shardsBySize(reversed, new long[] { 10, 10,
+				10, 10 });
+
+		assertArrayEquals(new int[] { 2, 1, 2, 1 }, shards);
+	}
+
+	@Test
+	public void shouldWarnIfShardHasNoStories() {
+		List<String> oneStory = Arrays.asList("a.story");
+		int shard = new StorySharding(2, 1, Strategy.HASH)
+				.shardsByHash(oneStory)[0];
+		StorySharding sharding = new StorySharding(2, 3 - shard, Strategy.HASH);
+		sharding.logger = mock(Logger.class);
+
+		assertThat(sharding.select(oneStory, null).isEmpty(), is(true));
+		verify(sharding.logger).warn("Shard {} of {} has none of the {} stories",
+				3 - shard, 2, 1);
+	}
+
+	@Test
+	public void shouldSelectAllStoriesIfNotSharded() {
+		assertThat(new StorySharding(1, 1, Strategy.HASH).select(storyPaths,
+				null), is(sameInstance(storyPaths)));
+		assertThat(new StorySharding(2, 3, Strategy.HASH).select(storyPaths,
+				null), is(sameInstance(storyPaths)));
+	}
+
+	@Test
+	public void shouldSelectDisjointShardsCoveringAllStories() {
+		List<String> selected = new ArrayList<String>();
+		for (int index = 1; index <= 3; index++) {
+			for (String storyPath : new StorySharding(3, index, Strategy.HASH)
+					.select(storyPaths, null)) {
+				assertThat(selected.contains(storyPath), is(false));
+				selected.add(storyPath);
+			}
+		}
+		Collections.sort(selected);
+		assertThat(selected, is(storyPaths));
+	}
+}
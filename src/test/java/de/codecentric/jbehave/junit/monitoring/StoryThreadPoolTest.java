@@ -0,0 +1,43 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StoryThreadPoolTest {
+
+	@After
+	public void clearProperty() {
+		System.clearProperty(StoryThreadPool.PROP_JJM_STORY_THREADS);
+	}
+
+	@Test
+	public void shouldNotConfigureThreadsWithoutAnnotationOrProperty() {
+		assertThat(StoryThreadPool.configuredThreads(Object.class), is(0));
+	}
+
+	@Test
+	public void shouldReadThreadsFromAnnotation() {
+		assertThat(StoryThreadPool.configuredThreads(ThreeThreads.class),
+				is(3));
+	}
+
+	@Test
+	public void shouldPreferSystemPropertyOverAnnotation() {
+		System.setProperty(StoryThreadPool.PROP_JJM_STORY_THREADS, "cores");
+		assertThat(StoryThreadPool.configuredThreads(ThreeThreads.class),
+				is(Runtime.getRuntime().availableProcessors()));
+	}
+
+	@Test
+	public void shouldIgnoreInvalidThreads() {
+		assertThat(StoryThreadPool.parseThreads("many"), is(0));
+		assertThat(StoryThreadPool.parseThreads("0"), is(0));
+	}
+
+	@StoryThreads("3")
+	private static class ThreeThreads {
+	}
+}
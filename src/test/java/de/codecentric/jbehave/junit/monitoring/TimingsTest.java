@@ -0,0 +1,52 @@
+package de.codecentric.jbehave.junit.monitoring;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.codecentric.jbehave.junit.monitoring.Timings.Level;
+import de.codecentric.jbehave.junit.monitoring.Timings.Timing;
+
+public class TimingsTest {
+
+	@Test
+	public void shouldTakeNearestRankPercentiles() {
+		List<Timing> slowestFirst = new ArrayList<Timing>();
+		for (int i = 100; i > 0; i--) {
+			slowestFirst.add(new Timing("step " + i, i));
+		}
+
+		assertThat(Timings.percentile(slowestFirst, 50), is(50L));
+		assertThat(Timings.percentile(slowestFirst, 90), is(90L));
+		assertThat(Timings.percentile(slowestFirst, 99), is(99L));
+	}
+
+	@Test
+	public void shouldListSlowestEntriesInSummary() {
+		Timings timings = new Timings(1);
+		long now = System.nanoTime();
+		timings.record(Level.STEP, "Given a fast step", now - 1000000);
+		timings.record(Level.STEP, "Given a slow step", now - 900000000);
+
+		String summary = timings.summary();
+
+		assertThat(summary, containsString("step              2"));
+		assertThat(summary, containsString("Slowest step:"));
+		assertThat(summary, containsString("ms  Given a slow step"));
+		assertThat(summary.contains("Given a fast step"), is(false));
+	}
+
+	@Test
+	public void shouldNotRecordIfDisabled() {
+		Timings timings = new Timings(0);
+
+		timings.record(Level.STORY, "story", timings.start());
+
+		assertThat(timings.getTimings(Level.STORY).isEmpty(), is(true));
+	}
+}
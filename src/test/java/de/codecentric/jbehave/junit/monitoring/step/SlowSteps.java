@@ -0,0 +1,16 @@
+package de.codecentric.jbehave.junit.monitoring.step;
+
+import org.jbehave.core.annotations.Given;
+import org.jbehave.core.annotations.Named;
+
+public class SlowSteps {
+
+	@Given("a step taking $seconds s unless interrupted")
+	public void givenAStepTaking(@Named("seconds") int seconds) {
+		try {
+			Thread.sleep(seconds * 1000L);
+		} catch (InterruptedException e) {
+			// cancelled as the story timed out
+		}
+	}
+}